@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.micabytes.map.TileMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures the time taken to draw the base layer of a TileMap while panning, with and without the
+ * chunk cache, at zoom 1x, 2x and 4x, and writes the 50th and 95th percentile to the log.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("MagicNumber")
+public class ChunkCacheBenchmark {
+  private static final String TAG = ChunkCacheBenchmark.class.getName();
+  private static final int MAP_SIZE = 256;
+  private static final int VIEW_WIDTH = 1280;
+  private static final int VIEW_HEIGHT = 720;
+  private static final int WARMUP_FRAMES = 30;
+  private static final int FRAMES = 300;
+  private static final int PAN_STEP = 7;
+  private static final long CHUNK_CACHE_SIZE = 32L * 1024L * 1024L;
+
+  @Test
+  public void baseLayerFrameTime() {
+    Bitmap surface = Bitmap.createBitmap(VIEW_WIDTH, VIEW_HEIGHT, Bitmap.Config.RGB_565);
+    Canvas canvas = new Canvas(surface);
+    for (int zoom = 1; zoom <= 4; zoom <<= 1) {
+      for (int cached = 0; cached < 2; cached++) {
+        TileMap map = TestMaps.tileMap(MAP_SIZE, MAP_SIZE);
+        map.setChunkCacheSize((cached == 0) ? 0L : CHUNK_CACHE_SIZE);
+        TileMapSurfaceRenderer renderer = new TileMapSurfaceRenderer(InstrumentationRegistry.getTargetContext());
+        renderer.setTileMap(map);
+        renderer.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+        renderer.viewPort.setZoom(zoom);
+        FrameStats stats = renderer.getFrameStats();
+        Rect dirty = new Rect();
+        for (int frame = 0; frame < (WARMUP_FRAMES + FRAMES); frame++) {
+          if (frame == WARMUP_FRAMES) stats.reset();
+          renderer.setViewPosition(frame * PAN_STEP * zoom, frame * PAN_STEP * zoom);
+          TestMaps.drawFrame(renderer, dirty, canvas);
+        }
+        Log.i(TAG, "Zoom " + zoom + "x, chunk cache " + ((cached == 0) ? "off" : "on") + ": base layer p50 "
+            + stats.getPercentile(FrameStats.BASE, 50.0f) + " ms, p95 " + stats.getPercentile(FrameStats.BASE, 95.0f) + " ms");
+      }
+    }
+    surface.recycle();
+  }
+
+}
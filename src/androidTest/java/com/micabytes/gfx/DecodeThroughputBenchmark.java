@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the tile decode throughput of BitmapRegionDecoder with 1, 2, 4 and 8 threads, each with
+ * its own decoder (as the decode workers of BitmapSurfaceRenderer do), and writes the result to
+ * the log. The image is a generated 4096x4096 JPEG, decoded in 256x256 tiles.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("MagicNumber")
+public class DecodeThroughputBenchmark {
+  private static final String TAG = DecodeThroughputBenchmark.class.getName();
+  private static final int IMAGE_SIZE = 4096;
+  private static final int TILE_SIZE = 256;
+  private static final int TILES = (IMAGE_SIZE / TILE_SIZE) * (IMAGE_SIZE / TILE_SIZE);
+  private static byte[] imageData;
+
+  @BeforeClass
+  public static void createImage() {
+    Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.RGB_565);
+    Canvas canvas = new Canvas(bitmap);
+    Paint paint = new Paint();
+    // Some structure, so that the image does not compress to nothing
+    for (int y = 0; y < IMAGE_SIZE; y += 64) {
+      for (int x = 0; x < IMAGE_SIZE; x += 64) {
+        paint.setColor(Color.rgb((x * 7) & 0xFF, (y * 13) & 0xFF, ((x + y) * 3) & 0xFF));
+        canvas.drawCircle(x + 32, y + 32, 24 + ((x ^ y) & 7), paint);
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+    bitmap.recycle();
+    imageData = out.toByteArray();
+  }
+
+  @Test
+  public void decodeThroughput() throws IOException, InterruptedException {
+    for (int workers = 1; workers <= 8; workers <<= 1) {
+      final BitmapRegionDecoder[] decoders = new BitmapRegionDecoder[workers];
+      try {
+        for (int i = 0; i < workers; i++) {
+          decoders[i] = BitmapRegionDecoder.newInstance(imageData, 0, imageData.length, false);
+        }
+        long elapsed = decodeTiles(decoders);
+        Log.i(TAG, "Decode throughput: " + workers + " threads, " + TILES + " tiles in " + elapsed + " ms ("
+            + ((TILES * 1000L) / elapsed) + " tiles/s)");
+      } finally {
+        for (BitmapRegionDecoder decoder : decoders) {
+          if (decoder != null) decoder.recycle();
+        }
+      }
+    }
+  }
+
+  /**
+   * Decodes all tiles of the image, split between the decoders
+   *
+   * @return The time taken, in ms
+   */
+  private static long decodeTiles(final BitmapRegionDecoder[] decoders) throws InterruptedException {
+    final int step = decoders.length;
+    final int columns = IMAGE_SIZE / TILE_SIZE;
+    final int[] decoded = new int[step];
+    Thread[] threads = new Thread[step];
+    long startTime = System.nanoTime();
+    for (int i = 0; i < step; i++) {
+      final int worker = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          BitmapFactory.Options opt = new BitmapFactory.Options();
+          opt.inPreferredConfig = BitmapSurfaceRenderer.DEFAULT_CONFIG;
+          Rect rect = new Rect();
+          for (int id = worker; id < TILES; id += step) {
+            int x = (id % columns) * TILE_SIZE;
+            int y = (id / columns) * TILE_SIZE;
+            rect.set(x, y, x + TILE_SIZE, y + TILE_SIZE);
+            Bitmap tile = decoders[worker].decodeRegion(rect, opt);
+            if (tile != null) {
+              tile.recycle();
+              decoded[worker]++;
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = Math.max(1L, (System.nanoTime() - startTime) / 1000000L);
+    int total = 0;
+    for (int n : decoded) {
+      total += n;
+    }
+    assertEquals(TILES, total);
+    return elapsed;
+  }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that drawing a frame (prepareFrame, compose and present, as done by the rendering thread
+ * of MicaSurfaceView) does not allocate once the caches are warm, for a TileMap, a HexMap and a
+ * background bitmap. The view pans back and forth over the same path, first to warm up, then
+ * while the allocations of the thread are counted for every frame.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings({"MagicNumber", "deprecation"})
+public class FrameAllocationTest {
+  private static final int VIEW_WIDTH = 800;
+  private static final int VIEW_HEIGHT = 480;
+  private static final int FRAMES = 120;
+  private static final int WARMUP_PASSES = 2;
+  private static final int PAN_STEP = 5;
+  private static final long BACKGROUND_WARMUP_MILLIS = 3000L;
+  private static final int BACKGROUND_ORIGIN = 1024;
+  private Context context;
+  private Bitmap surface;
+  private Canvas canvas;
+  private final Rect dirty = new Rect();
+
+  @Before
+  public void setUp() {
+    context = InstrumentationRegistry.getTargetContext();
+    surface = Bitmap.createBitmap(VIEW_WIDTH, VIEW_HEIGHT, Bitmap.Config.RGB_565);
+    canvas = new Canvas(surface);
+  }
+
+  @After
+  public void tearDown() {
+    surface.recycle();
+  }
+
+  @Test
+  public void tileMapFramesDoNotAllocate() {
+    TileMapSurfaceRenderer renderer = new TileMapSurfaceRenderer(context);
+    renderer.setTileMap(TestMaps.tileMap(128, 128));
+    checkPanning(renderer);
+  }
+
+  @Test
+  public void hexMapFramesDoNotAllocate() {
+    HexMapSurfaceRenderer renderer = new HexMapSurfaceRenderer(context);
+    renderer.setTileMap(TestMaps.hexMap(128, 128));
+    checkPanning(renderer);
+  }
+
+  @Test
+  public void backgroundFramesDoNotAllocate() throws IOException, InterruptedException {
+    BitmapSurfaceRenderer renderer = new BitmapSurfaceRenderer(context, BitmapSurfaceRenderer.DEFAULT_CONFIG, 2, 20) {
+    };
+    renderer.setDiskCacheSize(0L);
+    renderer.setBitmap(new ByteArrayInputStream(createImage(4096, 4096)));
+    renderer.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+    renderer.start();
+    try {
+      // Let the decode threads fill the cache around the panned area
+      long end = System.currentTimeMillis() + BACKGROUND_WARMUP_MILLIS;
+      int frame = 0;
+      while (System.currentTimeMillis() < end) {
+        pan(renderer, BACKGROUND_ORIGIN, frame++ % FRAMES);
+        TestMaps.drawFrame(renderer, dirty, canvas);
+        Thread.sleep(16L);
+      }
+      for (frame = 0; frame < FRAMES; frame++) {
+        pan(renderer, BACKGROUND_ORIGIN, frame);
+        checkFrame(renderer, frame);
+      }
+    } finally {
+      renderer.stop();
+    }
+  }
+
+  private void checkPanning(SurfaceRenderer renderer) {
+    renderer.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+    for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+      for (int frame = 0; frame < FRAMES; frame++) {
+        pan(renderer, 0, frame);
+        TestMaps.drawFrame(renderer, dirty, canvas);
+      }
+    }
+    for (int frame = 0; frame < FRAMES; frame++) {
+      pan(renderer, 0, frame);
+      checkFrame(renderer, frame);
+    }
+  }
+
+  /**
+   * Out along the diagonal for the first half of the frames, and back for the second
+   */
+  private static void pan(SurfaceRenderer renderer, int origin, int frame) {
+    int step = (frame < (FRAMES / 2)) ? frame : (FRAMES - frame);
+    renderer.setViewPosition(origin + (step * PAN_STEP), origin + (step * PAN_STEP));
+  }
+
+  private void checkFrame(SurfaceRenderer renderer, int frame) {
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    TestMaps.drawFrame(renderer, dirty, canvas);
+    Debug.stopAllocCounting();
+    int count = Debug.getThreadAllocCount();
+    if (count > 0) fail("Frame " + frame + " allocated " + count + " objects");
+  }
+
+  private static byte[] createImage(int w, int h) {
+    Bitmap bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+    Canvas c = new Canvas(bitmap);
+    Paint paint = new Paint();
+    for (int y = 0; y < h; y += 128) {
+      for (int x = 0; x < w; x += 128) {
+        paint.setColor(Color.rgb((x >> 4) & 0xFF, (y >> 4) & 0xFF, 128));
+        c.drawRect(x, y, x + 128, y + 128, paint);
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+    bitmap.recycle();
+    return out.toByteArray();
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import com.micabytes.map.ArrayTileGrid;
+import com.micabytes.map.HexMap;
+import com.micabytes.map.TileMap;
+import com.micabytes.map.TileMapZone;
+
+import java.util.Random;
+
+/**
+ * Maps and renderers for the rendering tests. The zones draw generated bitmaps, as the tests do not
+ * run in a GameApplication (which ImageHandler loads resources through).
+ */
+@SuppressWarnings("MagicNumber")
+final class TestMaps {
+  static final int TILE_SIZE = 64;
+  private static final int ZONES = 8;
+
+  /**
+   * A zone that draws a bitmap of its own
+   */
+  static final class BitmapZone extends TileMapZone {
+    private final Bitmap bitmap;
+
+    BitmapZone(int color) {
+      bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+      bitmap.eraseColor(color);
+      Paint paint = new Paint();
+      paint.setColor(Color.WHITE);
+      new Canvas(bitmap).drawCircle(TILE_SIZE / 2, TILE_SIZE / 2, TILE_SIZE / 4, paint);
+    }
+
+    @Override
+    public int getWidth() {
+      return TILE_SIZE;
+    }
+
+    @Override
+    public int getHeight() {
+      return TILE_SIZE;
+    }
+
+    @Override
+    public void drawBase(Canvas canvas, Rect tileRect, Rect destRect, Paint paint) {
+      canvas.drawBitmap(bitmap, null, destRect, paint);
+    }
+  }
+
+  static ArrayTileGrid grid(int w, int h) {
+    TileMapZone[] zones = new TileMapZone[ZONES + 1];
+    for (int i = 1; i <= ZONES; i++) {
+      zones[i] = new BitmapZone(Color.HSVToColor(new float[]{(360.0f * i) / ZONES, 0.6f, 0.8f}));
+    }
+    ArrayTileGrid grid = new ArrayTileGrid(w, h, zones);
+    Random random = new Random(w * h);
+    int[] ids = grid.getIds();
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = 1 + random.nextInt(ZONES);
+    }
+    return grid;
+  }
+
+  static TileMap tileMap(int w, int h) {
+    TileMap map = new TileMap() {
+      @Override
+      public void drawLayer(Context con, SurfaceRenderer.ViewPort p) {
+        // NOOP
+      }
+
+      @Override
+      public void drawFinal(Context con, SurfaceRenderer.ViewPort p) {
+        // NOOP
+      }
+    };
+    map.setTileMap(grid(w, h));
+    return map;
+  }
+
+  static HexMap hexMap(int w, int h) {
+    HexMap map = new HexMap() {
+      @Override
+      public void drawLayer(Context con, SurfaceRenderer.ViewPort p) {
+        // NOOP
+      }
+
+      @Override
+      public void drawFinal(Context con, SurfaceRenderer.ViewPort p) {
+        // NOOP
+      }
+
+      @Override
+      public Point getViewPortOrigin(int x, int y, SurfaceRenderer.ViewPort p) {
+        return new Point(x, y);
+      }
+    };
+    map.setHexMap(grid(w, h));
+    return map;
+  }
+
+  /**
+   * Draw a frame, as the rendering thread of MicaSurfaceView does
+   */
+  static void drawFrame(SurfaceRenderer renderer, Rect dirty, Canvas canvas) {
+    if (renderer.prepareFrame(dirty)) {
+      renderer.compose();
+      renderer.present(canvas);
+    }
+  }
+
+  private TestMaps() {
+    throw new AssertionError("Utility classes should never be instantiated");
+  }
+
+}
@@ -2,6 +2,8 @@ package com.micabytes;
 
 import android.app.Application;
 
+import com.micabytes.gfx.ImageHandler;
+
 public class GameApplication extends Application {
   // Game World
   private WorldInterface world;
@@ -29,4 +31,16 @@ public class GameApplication extends Application {
     instance = this;
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    ImageHandler.onTrimMemory(level);
+  }
+
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    ImageHandler.clearMipmaps();
+  }
+
 }
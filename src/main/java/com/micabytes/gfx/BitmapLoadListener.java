@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import java.io.IOException;
+
+/**
+ * Interface for BitmapLoadListener. Reports the progress of an asynchronous background load of the
+ * {@link BitmapSurfaceRenderer}. The callbacks are made on the main (UI) thread.
+ */
+public interface BitmapLoadListener {
+  // The dimensions of the background are known; the view can be positioned
+  void onBoundsKnown(int width, int height);
+
+  // The low resolution background is drawn instead of the placeholder
+  void onPreviewReady();
+
+  // The high resolution background is being decoded as the view needs it
+  void onReady();
+
+  // The background could not be loaded
+  void onLoadFailed(IOException e);
+}
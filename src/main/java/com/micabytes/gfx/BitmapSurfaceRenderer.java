@@ -12,23 +12,29 @@
  */
 package com.micabytes.gfx;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 
 import com.micabytes.util.GameLog;
 
 import org.jetbrains.annotations.NonNls;
 
-import java.io.FilterInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.CRC32;
 
 /**
  * GameSurfaceRendererBitmap is a renderer that handles the rendering of a background bitmap to the
@@ -41,118 +47,583 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
   // Default Settings
   @NonNls
   private static final String CACHE_THREAD = "cacheThread";
+  @NonNls
+  private static final String DECODE_THREAD = "decodeThread";
+  @NonNls
+  private static final String LOADER_THREAD = "loaderThread";
+  @NonNls
+  private static final String DISK_CACHE_DIR = "tiles";
   public static final Bitmap.Config DEFAULT_CONFIG = Bitmap.Config.RGB_565;
   private static final int DEFAULT_SAMPLE_SIZE = 2;
   private static final int DEFAULT_MEM_USAGE = 20;
-  private static final float DEFAULT_THRESHOLD = 0.75f;
-  // BitmapRegionDecoder - this is the class that does the magic
-  private BitmapRegionDecoder decoder;
+  /**
+   * The size (width and height) of the decoded tiles the background cache is built from
+   */
+  private static final int TILE_SIZE = 256;
+  /**
+   * The maximum number of decode workers used by default. Each worker holds its own
+   * BitmapRegionDecoder (and its decoding state), so the pool is bounded.
+   */
+  private static final int MAX_DEFAULT_DECODE_THREADS = 4;
+  private static final int READ_BUFFER_SIZE = 16384;
+  private static final long DEFAULT_DISK_CACHE_SIZE = 256L * 1024L * 1024L;
+  // The source of the tiles - this is the class that does the magic (a BitmapRegionDecoder over
+  // the compressed image, or a pre-tiled container)
+  @Nullable private volatile TileSource tileSource;
+  // The persistent cache of decoded tiles (null if disabled)
+  @Nullable private volatile TileDiskCache diskCache;
+  private long diskCacheSize;
+  // The number of decode workers
+  private int decodeThreads = getDefaultDecodeThreads();
   // The cached portion of the background image
   private final CacheBitmap cachedBitmap = new CacheBitmap();
-  // The low resolution version of the background image
-  private Bitmap lowResBitmap;
+  // The low resolution version of the background image (the top level of the image pyramid)
+  @Nullable private volatile Bitmap previewBitmap;
+  // The color drawn until the low resolution background is available
+  private int placeholderColor = Color.BLACK;
+  // Serializes the loading of backgrounds
+  private final Object loadLock = new Object();
   /**
    * Options for loading the bitmaps
    */
   private final BitmapFactory.Options options = new BitmapFactory.Options();
   /**
-   * What is the down sample size for the sample image? 1=1/2, 2=1/4 3=1/8, etc
+   * What is the down sample size for the sample image? 1=1/2, 2=1/4 3=1/8, etc. This is also the
+   * top level of the image pyramid.
    */
   private final int sampleSize;
   /**
    * What percent of total memory should we use for the cache? The bigger the cache, the longer it
    * takes to read -- 1.2 secs for 25%, 600ms for 10%, 500ms for 5%. User experience seems to be
-   * best for smaller values.
+   * best for smaller values. The budget shrinks under memory pressure, and grows back afterwards.
+   */
+  private final CacheBudget budget;
+  /**
+   * Shrinks the cache when the system is low on memory
    */
-  private int memUsage;
+  private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+    @Override
+    public void onTrimMemory(int level) {
+      cacheBitmapTrimMemory(cachedBitmap, level);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+      // NOOP
+    }
+
+    @Override
+    public void onLowMemory() {
+      cacheBitmapTrimMemory(cachedBitmap, TRIM_MEMORY_COMPLETE);
+    }
+  };
   /**
-   * Threshold for using low resolution image
+   * Draw the tiles in memory over the low resolution image while the cache is being updated
    */
-  private final float lowResThreshold;
+  private boolean progressive = true;
   /**
    * Calculated rect
    */
   private final Rect calculatedCacheWindowRect = new Rect();
+  /**
+   * The tile grids of the image pyramid; replaced as a whole by the loader thread, so readers take
+   * it once per operation
+   */
+  private volatile Pyramid pyramid = Pyramid.EMPTY;
 
   @SuppressWarnings("unused")
   private BitmapSurfaceRenderer(Context con) {
     super(con);
     options.inPreferredConfig = DEFAULT_CONFIG;
     sampleSize = DEFAULT_SAMPLE_SIZE;
-    setMemUsage(DEFAULT_MEM_USAGE);
-    lowResThreshold = DEFAULT_THRESHOLD;
+    budget = new CacheBudget(DEFAULT_MEM_USAGE, DEFAULT_CONFIG);
+    viewPort.setScrollBlit(true);
   }
 
-  protected BitmapSurfaceRenderer(Context con, Bitmap.Config config, int sample, int memUse, float threshold) {
+  protected BitmapSurfaceRenderer(Context con, Bitmap.Config config, int sample, int memUse) {
     super(con);
     options.inPreferredConfig = config;
     sampleSize = sample;
-    setMemUsage(memUse);
-    lowResThreshold = threshold;
+    budget = new CacheBudget(memUse, config);
+    // The cached bitmap is only drawn within the base clip
+    viewPort.setScrollBlit(true);
   }
 
-  static class FlushedInputStream extends FilterInputStream {
-    FlushedInputStream(InputStream inputStream) {
-      super(inputStream);
-    }
+  /**
+   * @deprecated The low resolution threshold is no longer used; the level of detail is chosen
+   * from the zoom of the viewport.
+   */
+  @SuppressWarnings("UnusedParameters")
+  @Deprecated
+  protected BitmapSurfaceRenderer(Context con, Bitmap.Config config, int sample, int memUse, float threshold) {
+    this(con, config, sample, memUse);
+  }
 
-    @Override
-    public long skip(long byteCount) throws IOException {
-      long totalBytesSkipped = 0L;
-      while (totalBytesSkipped < byteCount) {
-        long bytesSkipped = in.skip(byteCount - totalBytesSkipped);
-        if (bytesSkipped == 0L) {
-          int bytes = read();
-          if (bytes < 0) {
-            break;  // we reached EOF
-          } else {
-            bytesSkipped = 1; // we read one byte
-          }
-        }
-        totalBytesSkipped += bytesSkipped;
-      }
-      return totalBytesSkipped;
-    }
+  private static int getDefaultDecodeThreads() {
+    // Leave one core for the UI and render threads
+    int cores = Runtime.getRuntime().availableProcessors() - 1;
+    return Math.max(1, Math.min(cores, MAX_DEFAULT_DECODE_THREADS));
   }
 
   /**
-   * Set the Background bitmap
+   * Set the number of threads used to decode the background image. Takes effect the next time
+   * the background is set.
+   */
+  @SuppressWarnings("unused")
+  public void setDecodeThreads(int n) {
+    decodeThreads = Math.max(1, n);
+  }
+
+  /**
+   * Enable the persistent cache of decoded tiles, stored in the app's cache directory. Repeat
+   * loads of the same background then read the tiles back from disk instead of decoding the image
+   * again. Takes effect the next time the background is set.
+   *
+   * @param maxBytes The maximum size of the disk cache (for all backgrounds); 0 disables it
+   */
+  @SuppressWarnings("unused")
+  public void setDiskCacheSize(long maxBytes) {
+    diskCacheSize = maxBytes;
+  }
+
+  /**
+   * Enable the persistent cache of decoded tiles with the default size.
+   */
+  @SuppressWarnings("unused")
+  public void enableDiskCache() {
+    setDiskCacheSize(DEFAULT_DISK_CACHE_SIZE);
+  }
+
+  /**
+   * Set the Background bitmap. The raw data is read into memory, where it is kept while the bitmap
+   * is shown; it is counted against the cache budget. Use {@link #setBitmap(File, String)} for
+   * images that are available as a file.
    *
    * @param inputStream InputStream to the raw data of the bitmap
    */
   public void setBitmap(InputStream inputStream) throws IOException {
-    FlushedInputStream fixedInput = new FlushedInputStream(inputStream);
-    BitmapFactory.Options opt = new BitmapFactory.Options();
-    decoder = BitmapRegionDecoder.newInstance(fixedInput, false);
-    fixedInput.reset();
-    // Grab the bounds of the background bitmap
-    opt.inPreferredConfig = DEFAULT_CONFIG;
-    opt.inJustDecodeBounds = true;
+    setBitmap(inputStream, null);
+  }
+
+  /**
+   * Set the Background bitmap (see {@link #setBitmap(InputStream)})
+   *
+   * @param inputStream InputStream to the raw data of the bitmap
+   * @param sourceKey   A key that identifies the bitmap (e.g., its asset name and version) in the
+   *                    disk cache. If null, a checksum of the data is used.
+   */
+  public void setBitmap(InputStream inputStream, @Nullable String sourceKey) throws IOException {
+    // Read the image data, so that each decode worker can open its own decoder on it
     GameLog.d(TAG, "Decode inputStream for Background Bitmap");
-    BitmapFactory.decodeStream(fixedInput, null, opt);
-    fixedInput.reset();
-    backgroundSize.set(opt.outWidth, opt.outHeight);
-    GameLog.d(TAG, "Background Image: w=" + opt.outWidth + " h=" + opt.outHeight);
-    // Create the low resolution background
-    opt.inJustDecodeBounds = false;
-    opt.inSampleSize = 1 << sampleSize;
-    lowResBitmap = BitmapFactory.decodeStream(fixedInput, null, opt);
-    GameLog.d(TAG, "Low Res Image: w=" + lowResBitmap.getWidth() + " h=" + lowResBitmap.getHeight());
-    // Initialize cache
-    if (cachedBitmap.getState() == CacheState.NOT_INITIALIZED) {
+    byte[] imageData = readFully(inputStream);
+    TileDiskCache disk = openDiskCache(imageData, sourceKey);
+    setTileSource(newRegionDecoderTileSource(imageData, disk), disk, null);
+  }
+
+  /**
+   * Set the Background bitmap from an image file (see {@link #setBitmap(File, String)})
+   */
+  @SuppressWarnings("unused")
+  public void setBitmap(File file) throws IOException {
+    setBitmap(file, null);
+  }
+
+  /**
+   * Set the Background bitmap from an image file. The decoders read the file as needed, so the
+   * raw data is not held in memory.
+   *
+   * @param file      The image file (PNG, JPEG)
+   * @param sourceKey A key that identifies the bitmap in the disk cache. If null, a key is made
+   *                  from the path, size and modification time of the file.
+   */
+  @SuppressWarnings("unused")
+  public void setBitmap(File file, @Nullable String sourceKey) throws IOException {
+    GameLog.d(TAG, "Decode file " + file + " for Background Bitmap");
+    if (!file.canRead()) throw new FileNotFoundException(file.getPath());
+    TileDiskCache disk = openDiskCache(file, sourceKey);
+    setTileSource(newRegionDecoderTileSource(file, disk), disk, null);
+  }
+
+  /**
+   * Set the Background bitmap asynchronously. Returns immediately; the image is read and the low
+   * resolution background is decoded on a background thread. Until then, the placeholder color is
+   * drawn.
+   *
+   * @param inputStream InputStream to the raw data of the bitmap; closed when it has been read
+   * @param sourceKey   A key that identifies the bitmap in the disk cache (see
+   *                    {@link #setBitmap(InputStream, String)})
+   * @param listener    Notified (on the UI thread) as the loading progresses
+   */
+  @SuppressWarnings("unused")
+  public void setBitmapAsync(final InputStream inputStream, @Nullable final String sourceKey, @Nullable BitmapLoadListener listener) {
+    final LoadNotifier notifier = new LoadNotifier(listener);
+    Thread loader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          byte[] imageData;
+          try {
+            imageData = readFully(inputStream);
+          } finally {
+            inputStream.close();
+          }
+          TileDiskCache disk = openDiskCache(imageData, sourceKey);
+          setTileSource(newRegionDecoderTileSource(imageData, disk), disk, notifier);
+        } catch (IOException e) {
+          GameLog.logException(e);
+          notifier.loadFailed(e);
+        }
+      }
+    };
+    loader.setName(LOADER_THREAD);
+    loader.start();
+  }
+
+  /**
+   * Set the Background bitmap from an image file asynchronously (see
+   * {@link #setBitmap(File, String)} and {@link #setBitmapAsync(InputStream, String, BitmapLoadListener)}).
+   */
+  @SuppressWarnings("unused")
+  public void setBitmapAsync(final File file, @Nullable final String sourceKey, @Nullable BitmapLoadListener listener) {
+    final LoadNotifier notifier = new LoadNotifier(listener);
+    Thread loader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          if (!file.canRead()) throw new FileNotFoundException(file.getPath());
+          TileDiskCache disk = openDiskCache(file, sourceKey);
+          setTileSource(newRegionDecoderTileSource(file, disk), disk, notifier);
+        } catch (IOException e) {
+          GameLog.logException(e);
+          notifier.loadFailed(e);
+        }
+      }
+    };
+    loader.setName(LOADER_THREAD);
+    loader.start();
+  }
+
+  /**
+   * Set the Background bitmap from a pre-tiled container file, as written by the MapTiler tool.
+   * The tiles are read from the (memory-mapped) file as needed, so the image is never decoded as a
+   * whole. The container must have been written with a tile size of 256, and have more pyramid
+   * levels than the sample size of the renderer.
+   *
+   * @param file The tile container
+   */
+  @SuppressWarnings("unused")
+  public void setTileContainer(File file) throws IOException {
+    // The container is already tiled; the disk cache would only duplicate it
+    setTileSource(openTileContainer(file), null, null);
+  }
+
+  /**
+   * Set the Background bitmap from a pre-tiled container file asynchronously (see
+   * {@link #setTileContainer(File)} and {@link #setBitmapAsync(InputStream, String, BitmapLoadListener)}).
+   */
+  @SuppressWarnings("unused")
+  public void setTileContainerAsync(final File file, @Nullable BitmapLoadListener listener) {
+    final LoadNotifier notifier = new LoadNotifier(listener);
+    Thread loader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          setTileSource(openTileContainer(file), null, notifier);
+        } catch (IOException e) {
+          GameLog.logException(e);
+          notifier.loadFailed(e);
+        }
+      }
+    };
+    loader.setName(LOADER_THREAD);
+    loader.start();
+  }
+
+  private TileContainer openTileContainer(File file) throws IOException {
+    TileContainer container = new TileContainer(file);
+    if (container.getTileSize() != TILE_SIZE) {
+      container.close();
+      throw new IOException("Tile container has tile size " + container.getTileSize() + "; expected " + TILE_SIZE);
+    }
+    if (container.getLevels() <= sampleSize) {
+      container.close();
+      throw new IOException("Tile container has " + container.getLevels() + " levels; expected more than " + sampleSize);
+    }
+    return container;
+  }
+
+  /**
+   * Creates the tile source of a compressed image. On a warm start, the size of the image is read
+   * from the disk cache instead of the image header.
+   */
+  private RegionDecoderTileSource newRegionDecoderTileSource(byte[] imageData, @Nullable TileDiskCache disk) {
+    Point size = new Point();
+    if ((disk != null) && disk.readInfo(size)) return new RegionDecoderTileSource(imageData, decodeThreads, size.x, size.y);
+    return new RegionDecoderTileSource(imageData, decodeThreads);
+  }
+
+  private RegionDecoderTileSource newRegionDecoderTileSource(File file, @Nullable TileDiskCache disk) {
+    Point size = new Point();
+    if ((disk != null) && disk.readInfo(size)) return new RegionDecoderTileSource(file.getPath(), decodeThreads, size.x, size.y);
+    return new RegionDecoderTileSource(file.getPath(), decodeThreads);
+  }
+
+  /**
+   * Opens the disk cache of a background image, if the disk cache is enabled
+   */
+  @Nullable
+  private TileDiskCache openDiskCache(byte[] imageData, @Nullable String sourceKey) {
+    if (diskCacheSize <= 0L) return null;
+    File root = new File(context.getCacheDir(), DISK_CACHE_DIR);
+    TileDiskCache.trim(root, diskCacheSize);
+    return new TileDiskCache(root, (sourceKey == null) ? getChecksum(imageData) : sourceKey, TILE_SIZE, options.inPreferredConfig);
+  }
+
+  @Nullable
+  private TileDiskCache openDiskCache(File file, @Nullable String sourceKey) {
+    if (diskCacheSize <= 0L) return null;
+    File root = new File(context.getCacheDir(), DISK_CACHE_DIR);
+    TileDiskCache.trim(root, diskCacheSize);
+    return new TileDiskCache(root, (sourceKey == null) ? getFileKey(file) : sourceKey, TILE_SIZE, options.inPreferredConfig);
+  }
+
+  /**
+   * Set the color drawn while the background is loading
+   */
+  @SuppressWarnings("unused")
+  public synchronized void setPlaceholderColor(int color) {
+    placeholderColor = color;
+    viewPort.invalidateBase();
+    requestRender();
+  }
+
+  private synchronized int getPlaceholderColor() {
+    return placeholderColor;
+  }
+
+  private void setTileSource(TileSource source, @Nullable TileDiskCache disk, @Nullable LoadNotifier notifier) {
+    synchronized (loadLock) {
+      // Draw the placeholder until the new background is ready
       synchronized (cachedBitmap) {
-        cachedBitmap.setState(CacheState.IS_INITIALIZED);
+        cachedBitmap.setState(CacheState.NOT_INITIALIZED);
+      }
+      cachedBitmap.queue.clear();
+      // Let the tiles of the old background that are being decoded finish
+      try {
+        cachedBitmap.queue.awaitIdle();
+      } catch (InterruptedException ignored) {
+        Thread.currentThread().interrupt();
+      }
+      previewBitmap = null;
+      // Release the decoders (or the mapped file) of the old background
+      TileSource oldSource = tileSource;
+      tileSource = source;
+      diskCache = disk;
+      // The data the source keeps on the heap comes out of the cache budget
+      budget.setReserved(source.getHeapBytes());
+      if ((oldSource != null) && (oldSource != source)) oldSource.close();
+      // Grab the low resolution background from the disk cache if possible
+      Point size = new Point(source.getWidth(), source.getHeight());
+      Bitmap preview = null;
+      if ((disk != null) && disk.readInfo(size) && (size.x == source.getWidth()) && (size.y == source.getHeight())) {
+        preview = disk.readPreview();
+      }
+      backgroundSize.set(source.getWidth(), source.getHeight());
+      GameLog.d(TAG, "Background Image: w=" + backgroundSize.x + " h=" + backgroundSize.y);
+      if (notifier != null) notifier.boundsKnown(backgroundSize.x, backgroundSize.y);
+      if (preview == null) {
+        // Create the low resolution background
+        BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inPreferredConfig = options.inPreferredConfig;
+        preview = source.decodeLevel(sampleSize, opt);
+        if ((disk != null) && (preview != null)) {
+          disk.writeInfo(backgroundSize.x, backgroundSize.y);
+          disk.writePreview(preview);
+        }
+      }
+      previewBitmap = preview;
+      viewPort.invalidateBase();
+      requestRender();
+      if (preview != null) {
+        GameLog.d(TAG, "Low Res Image: w=" + preview.getWidth() + " h=" + preview.getHeight());
       }
+      if (notifier != null) notifier.previewReady();
+      setPyramid();
+      if (notifier != null) notifier.ready();
     }
   }
 
-  @SuppressWarnings("MethodOnlyUsedFromInnerClass")
-  private synchronized int getMemUsage() {
-    return memUsage;
+  /**
+   * Set up the tile grids of the image pyramid, and start caching
+   */
+  private void setPyramid() {
+    Pyramid p = new Pyramid(backgroundSize.x, backgroundSize.y, sampleSize);
+    pyramid = p;
+    cachedBitmap.tiles.reset(p.getTileCount());
+    cachedBitmap.queue.reset(p.getTileCount());
+    // Initialize cache
+    synchronized (cachedBitmap) {
+      cachedBitmap.setState(CacheState.IS_INITIALIZED);
+    }
+  }
+
+  /**
+   * Posts the progress of an asynchronous load to a {@link BitmapLoadListener} on the UI thread
+   */
+  private static final class LoadNotifier {
+    @Nullable private final BitmapLoadListener listener;
+    private final Handler handler;
+
+    LoadNotifier(@Nullable BitmapLoadListener l) {
+      listener = l;
+      handler = new Handler(Looper.getMainLooper());
+    }
+
+    void boundsKnown(final int width, final int height) {
+      if (listener == null) return;
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          listener.onBoundsKnown(width, height);
+        }
+      });
+    }
+
+    void previewReady() {
+      if (listener == null) return;
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          listener.onPreviewReady();
+        }
+      });
+    }
+
+    void ready() {
+      if (listener == null) return;
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          listener.onReady();
+        }
+      });
+    }
+
+    void loadFailed(final IOException e) {
+      if (listener == null) return;
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          listener.onLoadFailed(e);
+        }
+      });
+    }
+  }
+
+  @NonNls
+  private static String getChecksum(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+    return Long.toHexString(crc.getValue()) + '-' + Integer.toHexString(data.length);
   }
 
-  private synchronized void setMemUsage(int i) {
-    memUsage = i;
+  @NonNls
+  private static String getFileKey(File file) {
+    return Integer.toHexString(file.getAbsolutePath().hashCode()) + '-' + Long.toHexString(file.length()) + '-' + Long.toHexString(file.lastModified());
+  }
+
+  private static byte[] readFully(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(READ_BUFFER_SIZE, inputStream.available()));
+    byte[] buffer = new byte[READ_BUFFER_SIZE];
+    int n;
+    while ((n = inputStream.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the level of the image pyramid to use for a zoom factor; i.e., the largest level
+   * whose sample size does not exceed the number of image pixels per screen pixel.
+   */
+  private int getLevel(float zoom) {
+    int level = 0;
+    while ((level < sampleSize) && ((1 << (level + 1)) <= zoom)) {
+      level++;
+    }
+    return level;
+  }
+
+  /**
+   * The tile grids of the image pyramid. Level l is decoded with an inSampleSize of 1 << l, and
+   * each of its tiles covers (TILE_SIZE << l) pixels of the background image, so that the number of
+   * pixels decoded is proportional to the number of pixels displayed. Levels 0 to sampleSize - 1
+   * are tiled; the top level (sampleSize) is the preview bitmap, which is decoded whole. Tile ids
+   * are numbered consecutively through the levels, starting at offset[level].
+   */
+  private static final class Pyramid {
+    static final Pyramid EMPTY = new Pyramid(0, 0, 0);
+    final int width;
+    final int height;
+    final int[] columns;
+    final int[] rows;
+    final int[] offset;
+
+    Pyramid(int w, int h, int levels) {
+      width = w;
+      height = h;
+      columns = new int[levels];
+      rows = new int[levels];
+      offset = new int[levels + 1];
+      for (int level = 0; level < levels; level++) {
+        int size = TILE_SIZE << level;
+        columns[level] = (w + size - 1) / size;
+        rows[level] = (h + size - 1) / size;
+        offset[level + 1] = offset[level] + (columns[level] * rows[level]);
+      }
+    }
+
+    int getTileCount() {
+      return offset[columns.length];
+    }
+
+    int getTileId(int level, int col, int row) {
+      return offset[level] + (row * columns[level]) + col;
+    }
+
+    /**
+     * Returns the level a tile belongs to
+     */
+    int getTileLevel(int id) {
+      int level = columns.length - 1;
+      while ((level > 0) && (id < offset[level])) {
+        level--;
+      }
+      return level;
+    }
+
+    int getTileColumn(int id, int level) {
+      return (id - offset[level]) % columns[level];
+    }
+
+    int getTileRow(int id, int level) {
+      return (id - offset[level]) / columns[level];
+    }
+
+    /**
+     * Sets the rect to the region of the background image covered by a tile
+     */
+    void getTileRect(int id, Rect rect) {
+      int level = getTileLevel(id);
+      int col = getTileColumn(id, level);
+      int row = getTileRow(id, level);
+      int size = TILE_SIZE << level;
+      rect.set(
+          col * size,
+          row * size,
+          Math.min(width, (col + 1) * size),
+          Math.min(height, (row + 1) * size));
+    }
   }
 
   @Override
@@ -175,6 +646,7 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
    */
   @Override
   public void start() {
+    context.getApplicationContext().registerComponentCallbacks(memoryCallbacks);
     cachedBitmap.start();
   }
 
@@ -183,6 +655,7 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
    */
   @Override
   public void stop() {
+    context.getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
     cachedBitmap.stop();
   }
 
@@ -202,6 +675,20 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
     cachedBitmap.resume();
   }
 
+  /**
+   * Set whether the background is drawn progressively; i.e., whether the tiles that are in memory
+   * are drawn over the low resolution version while the rest are being decoded. If not, the low
+   * resolution version is used until all visible tiles are in memory.
+   */
+  @SuppressWarnings("unused")
+  public synchronized void setProgressive(boolean b) {
+    progressive = b;
+  }
+
+  private synchronized boolean isProgressive() {
+    return progressive;
+  }
+
   /**
    * Invalidate the cache.
    */
@@ -209,6 +696,15 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
     cachedBitmap.invalidate();
   }
 
+  /**
+   * Prefetch the high resolution tiles along the fling trajectory and around the landing point,
+   * so that the view is sharp when the fling settles.
+   */
+  @Override
+  public void onFling(int startX, int startY, int finalX, int finalY) {
+    cachedBitmap.setFling(startX, startY, finalX, finalY);
+  }
+
   /**
    * The current state of the cached bitmap
    */
@@ -217,28 +713,48 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
   }
 
   /**
-   * The cached bitmap object. This object is continually kept up to date by CacheThread. If
-   * the object is locked, the background is updated using the low resolution background image
-   * instead
+   * The cached bitmap object. This object is continually kept up to date by CacheThread. The
+   * background is cached as a grid of TILE_SIZE x TILE_SIZE tiles held in an LRU cache, so that
+   * only newly exposed tiles need to be decoded when the view moves. If the object is locked, the
+   * background is updated using the low resolution background image instead
    */
   @SuppressWarnings("AssignmentToNull")
   private class CacheBitmap {
     /**
-     * The current position and dimensions of the cache within the background image
+     * The current position and dimensions of the cache within the background image (tile aligned)
      */
     final Rect cacheWindow = new Rect(0, 0, 0, 0);
+    /**
+     * The level of the image pyramid of the cache window, and of the update in progress
+     */
+    int cacheLevel;
+    int updateLevel;
+    /**
+     * The predicted trajectory of the view origin during a fling
+     */
+    private final Rect flingPath = new Rect(0, 0, 0, 0);
+    private boolean flinging;
+    private boolean flingPrefetch;
     /**
      * The current state of the cache
      */
     private CacheState state = CacheState.NOT_INITIALIZED;
     /**
-     * The currently cached bitmap
+     * The currently cached tiles
      */
-    @Nullable Bitmap bitmap;
+    final BitmapTileCache tiles = new BitmapTileCache(0L);
+    /**
+     * The tiles waiting to be decoded
+     */
+    final TileDecodeQueue queue = new TileDecodeQueue();
     /**
      * The cache bitmap loading thread
      */
     private CacheThread cacheThread;
+    /**
+     * The tile decoding threads
+     */
+    private DecodeThread[] decodeThreads = new DecodeThread[0];
 
     synchronized CacheState getState() {
       return state;
@@ -254,36 +770,90 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
         cacheThread.interrupt();
         cacheThread = null;
       }
+      stopDecodeThreads();
       cacheThread = new CacheThread(this);
       cacheThread.setName(CACHE_THREAD);
       cacheThread.start();
+      decodeThreads = new DecodeThread[BitmapSurfaceRenderer.this.decodeThreads];
+      for (int i = 0; i < decodeThreads.length; i++) {
+        decodeThreads[i] = new DecodeThread(this, i);
+        decodeThreads[i].start();
+      }
     }
 
     void stop() {
       cacheThread.setRunning(false);
       cacheThread.interrupt();
+      joinThread(cacheThread);
+      cacheThread = null;
+      stopDecodeThreads();
+    }
+
+    private void stopDecodeThreads() {
+      queue.clear();
+      for (DecodeThread thread : decodeThreads) {
+        thread.setRunning(false);
+        thread.interrupt();
+      }
+      for (DecodeThread thread : decodeThreads) {
+        joinThread(thread);
+      }
+      decodeThreads = new DecodeThread[0];
+    }
+
+    private void joinThread(Thread thread) {
       boolean retry = true;
       while (retry) {
         try {
-          cacheThread.join();
+          thread.join();
           retry = false;
         } catch (InterruptedException ignored) {
           // Wait until thread is dead
         }
       }
-      cacheThread = null;
     }
 
     void invalidate() {
+      queue.clear();
+      tiles.evictAll();
       setState(CacheState.IS_INITIALIZED);
       cacheThread.interrupt();
     }
 
-    public void suspend() {
-      setState(CacheState.DISABLED);
+    synchronized void setFling(int startX, int startY, int finalX, int finalY) {
+      flingPath.set(startX, startY, finalX, finalY);
+      flinging = true;
+      flingPrefetch = true;
     }
 
-    public void resume() {
+    synchronized boolean isFlinging() {
+      return flinging;
+    }
+
+    /**
+     * Returns the predicted fling trajectory (left/top is the start, right/bottom the final
+     * position of the view origin) if a prefetch is pending, and clears it.
+     */
+    synchronized boolean takeFlingPrefetch(Rect path) {
+      if (!flingPrefetch) return false;
+      flingPrefetch = false;
+      path.set(flingPath);
+      return true;
+    }
+
+    public synchronized void suspend() {
+      if (flingPrefetch && (getState() != CacheState.NOT_INITIALIZED)) {
+        // Prefetch the fling trajectory instead of disabling the cache
+        setState(CacheState.BEGIN_UPDATE);
+        if (cacheThread != null) cacheThread.interrupt();
+      } else {
+        setState(CacheState.DISABLED);
+      }
+    }
+
+    public synchronized void resume() {
+      flinging = false;
+      flingPrefetch = false;
       if (getState() == CacheState.DISABLED) {
         setState(CacheState.IS_INITIALIZED);
       }
@@ -295,11 +865,28 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
     @SuppressWarnings("OverlyComplexMethod")
     void draw(SurfaceRenderer.ViewPort p) {
       if (cacheThread == null) return;
-      Bitmap bmp = null;
+      // A base layer drawn from incomplete data is redrawn completely until the data is there
+      if (!baseComplete) p.invalidateBase();
+      p.getBaseClip(drawClip);
+      p.getBaseWindow(drawWindow);
+      p.getBaseOrigin(drawOrigin);
+      drawZoom = p.getBaseZoom();
+      // While flinging, the cache holds the prefetched trajectory; don't start new updates
+      boolean flying = isFlinging();
+      ViewState view = p.getState();
+      int level = getLevel(view.getZoom());
+      if (level >= sampleSize) {
+        // The preview is the top level of the pyramid
+        baseComplete = drawLowResolution();
+        if (!baseComplete) p.invalidate();
+        return;
+      }
       switch (getState()) {
         case NOT_INITIALIZED:
-          // Error
-          GameLog.e(TAG, "Attempting to update an uninitialized CacheBitmap");
+          // Still loading; the low resolution version (or the placeholder) is used
+          drawLowResolution();
+          baseComplete = false;
+          p.invalidate();
           return;
         case IS_INITIALIZED:
           // Start data caching
@@ -307,27 +894,38 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
           cacheThread.interrupt();
           break;
         case BEGIN_UPDATE:
-        case IS_UPDATING:
           // Currently updating; low resolution version used
           break;
+        case IS_UPDATING:
+          // Currently updating; low resolution version used. Restart if the zoom level changed.
+          synchronized (this) {
+            if ((getState() == CacheState.IS_UPDATING) && (updateLevel != level) && !flying) {
+              setState(CacheState.BEGIN_UPDATE);
+              cacheThread.interrupt();
+            }
+          }
+          break;
         case DISABLED:
           // Use of high resolution version disabled
           break;
         case READY:
-          if ((bitmap == null) || !cacheWindow.contains(p.getWindow())) {
-            // No data loaded OR No cached data available
+          view.getWindow(viewWindow);
+          if (((cacheLevel != level) || !cacheWindow.contains(viewWindow)) && !flying) {
+            // No cached data available
             setState(CacheState.BEGIN_UPDATE);
             cacheThread.interrupt();
-          } else {
-            bmp = bitmap;
           }
           break;
       }
-      // Use the low resolution version if the cache is empty or scale factor is < threshold
-      if ((bmp == null) || (getZoom() < lowResThreshold))
+      // Use the high resolution tiles that are in memory (even while updating, as they may have
+      // been prefetched), and the low resolution version otherwise
+      boolean requestUpdate = !flying && (getState() == CacheState.READY);
+      if (!drawHighResolution(level, requestUpdate)) {
         drawLowResolution();
-      else
-        drawHighResolution(bmp);
+        baseComplete = false;
+      }
+      // With partial updates, keep drawing frames until the data is complete
+      if (!baseComplete) p.invalidate();
     }
 
     /**
@@ -338,66 +936,163 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
      * Used to hold the dest Rect for bitmap drawing
      */
     private final Rect dstRect = new Rect(0, 0, 0, 0);
-    private final Point dstSize = new Point();
+    /**
+     * The area of the viewport to draw (in screen and in image pixels), and the mapping from image
+     * to screen pixels (see {@link SurfaceRenderer.ViewPort#getBaseOrigin(Point)})
+     */
+    private final Rect drawClip = new Rect(0, 0, 0, 0);
+    private final Rect viewWindow = new Rect(0, 0, 0, 0);
+    private final Rect drawWindow = new Rect(0, 0, 0, 0);
+    private final Point drawOrigin = new Point();
+    private float drawZoom = 1.0f;
+    /**
+     * Whether the base layer of the last frame was drawn from complete data (if not, it is redrawn
+     * rather than scrolled)
+     */
+    volatile boolean baseComplete;
 
     /**
-     * Use the high resolution cached bitmap for drawing
+     * Used to hold the region of a tile while drawing
+     */
+    private final Rect tileRect = new Rect(0, 0, 0, 0);
+    /**
+     * Draws into the viewport bitmap (bound to it for each frame, as the viewport is double buffered)
      */
-    void drawHighResolution(Bitmap bmp) {
-      Rect wSize = viewPort.getWindow();
-      if (bmp != null) {
-        synchronized (viewPort) {
-          int left = wSize.left - cacheWindow.left;
-          int top = wSize.top - cacheWindow.top;
-          int right = left + wSize.width();
-          int bottom = top + wSize.height();
-          viewPort.getPhysicalSize(dstSize);
-          srcRect.set(left, top, right, bottom);
-          dstRect.set(0, 0, dstSize.x, dstSize.y);
-          synchronized (viewPort.bitmapLock) {
-            Canvas canvas = new Canvas(viewPort.bitmap);
-            canvas.drawColor(Color.BLACK);
-            canvas.drawBitmap(bmp, srcRect, dstRect, null);
+    private final Canvas canvas = new Canvas();
+
+    /**
+     * Use the cached tiles of the given pyramid level to draw the base clip of the viewport. If
+     * some of the tiles in the clip are missing (e.g., they are still being decoded), an update is started if requested. In
+     * progressive mode, the low resolution version is then drawn first, and refined with whatever
+     * tiles of the coarser levels and the given level are in memory; otherwise nothing is drawn.
+     *
+     * @return true if the clip was drawn
+     */
+    boolean drawHighResolution(int level, boolean requestUpdate) {
+      Pyramid p = pyramid;
+      int size = TILE_SIZE << level;
+      int colMn = drawWindow.left / size;
+      int rowMn = drawWindow.top / size;
+      int colMx = Math.min(p.columns[level] - 1, (drawWindow.right - 1) / size);
+      int rowMx = Math.min(p.rows[level] - 1, (drawWindow.bottom - 1) / size);
+      boolean complete = true;
+      for (int row = rowMn; complete && (row <= rowMx); row++) {
+        for (int col = colMn; col <= colMx; col++) {
+          if (!tiles.contains(p.getTileId(level, col, row))) {
+            complete = false;
+            break;
           }
         }
       }
+      if (!complete) {
+        if (requestUpdate) {
+          setState(CacheState.BEGIN_UPDATE);
+          cacheThread.interrupt();
+        }
+        if (!isProgressive()) return false;
+      }
+      baseComplete = complete;
+      if (drawClip.isEmpty()) return true;
+      synchronized (viewPort.bitmapLock) {
+        if (viewPort.bitmap == null) return true;
+        if (complete) {
+          beginDraw();
+          canvas.drawColor(Color.BLACK);
+          drawTiles(canvas, p, level);
+          endDraw();
+        } else {
+          drawLowResolutionBackground();
+          beginDraw();
+          for (int coarse = sampleSize - 1; coarse >= level; coarse--) {
+            drawTiles(canvas, p, coarse);
+          }
+          endDraw();
+        }
+      }
+      return true;
     }
 
-    void drawLowResolution() {
-      if (getState() != CacheState.NOT_INITIALIZED) {
-        drawLowResolutionBackground();
+    /**
+     * Draw the cached tiles of a pyramid level that are visible in the draw window
+     */
+    private void drawTiles(Canvas canvas, Pyramid p, int level) {
+      int size = TILE_SIZE << level;
+      int colMn = drawWindow.left / size;
+      int rowMn = drawWindow.top / size;
+      int colMx = Math.min(p.columns[level] - 1, (drawWindow.right - 1) / size);
+      int rowMx = Math.min(p.rows[level] - 1, (drawWindow.bottom - 1) / size);
+      for (int row = rowMn; row <= rowMx; row++) {
+        for (int col = colMn; col <= colMx; col++) {
+          int id = p.getTileId(level, col, row);
+          Bitmap bmp = tiles.get(id);
+          if (bmp == null) continue;
+          p.getTileRect(id, tileRect);
+          srcRect.set(0, 0, bmp.getWidth(), bmp.getHeight());
+          dstRect.set(
+              toScreen(tileRect.left, drawZoom) - drawOrigin.x,
+              toScreen(tileRect.top, drawZoom) - drawOrigin.y,
+              toScreen(tileRect.right, drawZoom) - drawOrigin.x,
+              toScreen(tileRect.bottom, drawZoom) - drawOrigin.y);
+          canvas.drawBitmap(bmp, srcRect, dstRect, null);
+        }
       }
     }
 
     /**
-     * This method fills the passed-in bitmap with sample data. This function must return data fast;
-     * this is our fall back solution in all the cases where the user is moving too fast for us to
-     * load the actual bitmap data from memory. The quality of the user experience rests on the speed
-     * of this function.
+     * @return true if the preview was drawn (rather than the placeholder)
+     */
+    boolean drawLowResolution() {
+      return drawLowResolutionBackground();
+    }
+
+    /**
+     * This method fills the base clip of the viewport with sample data. This function must return
+     * data fast; this is our fall back solution in all the cases where the user is moving too fast
+     * for us to load the actual bitmap data from memory. The quality of the user experience rests on
+     * the speed of this function.
      */
     @SuppressWarnings("AccessingNonPublicFieldOfAnotherObject")
-    private void drawLowResolutionBackground() {
-      int w = 0;
-      int h = 0;
-      synchronized (viewPort.bitmapLock) {
-        if (viewPort.bitmap == null) return;
-        w = viewPort.bitmap.getWidth();
-        h = viewPort.bitmap.getHeight();
-      }
-      Rect rect = viewPort.getWindow();
-      int left = rect.left >> sampleSize;
-      int top = rect.top >> sampleSize;
-      int right = rect.right >> sampleSize;
-      int bottom = rect.bottom >> sampleSize;
-      Rect sRect = new Rect(left, top, right, bottom);
-      Rect dRect = new Rect(0, 0, w, h);
-      // Draw to Canvas
+    private boolean drawLowResolutionBackground() {
+      Bitmap preview = previewBitmap;
+      if (drawClip.isEmpty()) return preview != null;
       synchronized (viewPort.bitmapLock) {
-        if (viewPort.bitmap != null && lowResBitmap != null) {
-          Canvas canvas = new Canvas(viewPort.bitmap);
-          canvas.drawBitmap(lowResBitmap, sRect, dRect, null);
+        if (viewPort.bitmap == null) return preview != null;
+        beginDraw();
+        if (preview == null) {
+          canvas.drawColor(getPlaceholderColor());
+          endDraw();
+          return false;
         }
+        // Each pixel of the preview covers 2^sampleSize pixels of the image
+        srcRect.set(
+            drawWindow.left >> sampleSize,
+            drawWindow.top >> sampleSize,
+            Math.min(preview.getWidth(), (drawWindow.right >> sampleSize) + 1),
+            Math.min(preview.getHeight(), (drawWindow.bottom >> sampleSize) + 1));
+        dstRect.set(
+            toScreen(srcRect.left << sampleSize, drawZoom) - drawOrigin.x,
+            toScreen(srcRect.top << sampleSize, drawZoom) - drawOrigin.y,
+            toScreen(srcRect.right << sampleSize, drawZoom) - drawOrigin.x,
+            toScreen(srcRect.bottom << sampleSize, drawZoom) - drawOrigin.y);
+        canvas.drawBitmap(preview, srcRect, dstRect, null);
+        endDraw();
       }
+      return true;
+    }
+
+    /**
+     * Bind the canvas to the viewport bitmap and clip it to the draw clip. Called with the bitmap
+     * lock held.
+     */
+    private void beginDraw() {
+      canvas.setBitmap(viewPort.bitmap);
+      canvas.save();
+      canvas.clipRect(drawClip);
+    }
+
+    private void endDraw() {
+      canvas.restore();
+      canvas.setBitmap(null);
     }
 
   }
@@ -405,7 +1100,7 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
   /**
    * This thread handles the background loading of the {@link CacheBitmap}. <p/> The CacheThread
    * starts an update when the {@link CacheBitmap#state} is {@link CacheState#BEGIN_UPDATE} and
-   * updates the bitmap given the current window. <p/> The CacheThread needs to be careful how it
+   * decodes the tiles of the cache window around the current viewport that are not already cached. <p/> The CacheThread needs to be careful how it
    * locks {@link CacheBitmap} in order to ensure the smoothest possible performance (loading can
    * take a while).
    */
@@ -425,6 +1120,8 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
     public void run() {
       running = true;
       Rect viewportRect = new Rect(0, 0, 0, 0);
+      Rect windowRect = new Rect(0, 0, 0, 0);
+      Rect flingRect = new Rect(0, 0, 0, 0);
       while (running) {
         // Wait until we are ready to go
         while (running && (cache.getState() != CacheState.BEGIN_UPDATE)) {
@@ -440,51 +1137,56 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
         long startTime = System.currentTimeMillis();
         // Load Data
         boolean startLoading = false;
+        // Zoom and window from the same snapshot of the view
+        ViewState view = viewPort.getState();
+        int level = getLevel(view.getZoom());
         synchronized (cache) {
           if (cache.getState() == CacheState.BEGIN_UPDATE) {
             cache.setState(CacheState.IS_UPDATING);
-            cache.bitmap = null;
+            cache.updateLevel = level;
             startLoading = true;
           }
         }
         if (startLoading) {
-          synchronized (viewPort) {
-            viewportRect.set(viewPort.getWindow());
+          view.getWindow(viewportRect);
+          // When flinging, the cache window is placed at the landing point
+          boolean prefetch = cache.takeFlingPrefetch(flingRect);
+          if (prefetch) {
+            viewportRect.offsetTo(flingRect.right, flingRect.bottom);
           }
           boolean continueLoading = false;
           synchronized (cache) {
-            if (cache.getState() == CacheState.IS_UPDATING) {
-              cache.cacheWindow.set(calculateCacheDimensions(viewportRect));
+            if ((cache.getState() == CacheState.IS_UPDATING) && (level < sampleSize)) {
+              alignToTiles(calculateCacheDimensions(viewportRect, level), level, windowRect);
               continueLoading = true;
             }
           }
           if (continueLoading) {
-            //noinspection ErrorNotRethrown
-            try {
-              Bitmap bitmap = loadCachedBitmap(cache.cacheWindow);
-              if (bitmap != null) {
-                synchronized (cache) {
-                  if (cache.getState() == CacheState.IS_UPDATING) {
-                    cache.bitmap = bitmap;
-                    cache.setState(CacheState.READY);
-                  } else {
-                    GameLog.d(TAG, "Loading of background image cache aborted");
-                  }
-                }
-              }
-              // End Loading Timer
-              long endTime = System.currentTimeMillis();
-              GameLog.d(TAG, "Loaded background image in " + (endTime - startTime) + " ms");
-            } catch (OutOfMemoryError ignored) {
-              GameLog.d(TAG, "CacheThread out of memory");
-              // Out of memory ERROR detected. Lower the memory allocation
-              cacheBitmapOutOfMemoryError();
-              synchronized (cache) {
-                if (cache.getState() == CacheState.IS_UPDATING) {
-                  cache.setState(CacheState.BEGIN_UPDATE);
+            // Tiles still queued from earlier updates are dropped unless queued again
+            cache.queue.nextGeneration();
+            int queued = loadCachedTiles(windowRect, level, viewportRect.centerX(), viewportRect.centerY());
+            if (prefetch) {
+              queued += loadFlingTiles(flingRect, viewportRect.width(), viewportRect.height(), level, windowRect,
+                  viewportRect.centerX(), viewportRect.centerY());
+            }
+            boolean finished = awaitCachedTiles();
+            synchronized (cache) {
+              if (finished && (cache.getState() == CacheState.IS_UPDATING)) {
+                cache.cacheWindow.set(windowRect);
+                cache.cacheLevel = level;
+                cache.setState(CacheState.READY);
+                // Memory has been fine for a while; let the budget grow back
+                if (budget.recover()) {
+                  GameLog.d(TAG, "Increasing cache size to " + budget.getPercent() + " percent.");
                 }
+              } else {
+                GameLog.d(TAG, "Loading of background image cache aborted");
               }
             }
+            // End Loading Timer
+            long endTime = System.currentTimeMillis();
+            GameLog.d(TAG, "Loaded " + queued + " background tiles with " + decodeThreads + " threads in "
+                + (endTime - startTime) + " ms");
           }
         }
       }
@@ -492,59 +1194,17 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
 
     /**
      * Determine the dimensions of the CacheBitmap based on the current ViewPort. <p/> Minimum size is
-     * equal to the viewport; otherwise it is dimensioned relative to the available memory. {@link
-     * CacheBitmap} is locked while the calculation is done, so this has to be fast.
+     * equal to the viewport; otherwise it is the largest window with the aspect ratio of the
+     * viewport that fits in the memory budget. {@link CacheBitmap} is locked while the calculation
+     * is done, so this has to be fast.
      *
      * @param rect The dimensions of the current viewport
+     * @param level The level of the image pyramid being cached
      * @return The dimensions of the cache
      */
-    private Rect calculateCacheDimensions(Rect rect) {
-      long bytesToUse = (Runtime.getRuntime().maxMemory() * getMemUsage()) / 100;
+    private Rect calculateCacheDimensions(Rect rect, int level) {
       Point sz = getBackgroundSize();
-      int vw = rect.width();
-      int vh = rect.height();
-      // Calculate the margins within the memory budget
-      int tw = 0;
-      int th = 0;
-      int mw = tw;
-      int mh = th;
-      int bytesPerPixel = 4;
-      while (((vw + tw) * (vh + th) * bytesPerPixel) < bytesToUse) {
-        tw++;
-        mw = tw;
-        th++;
-        mh = th;
-      }
-      // Trim margins to image size
-      if ((vw + mw) > sz.x) mw = Math.max(0, sz.x - vw);
-      if ((vh + mh) > sz.y) mh = Math.max(0, sz.y - vh);
-      // Figure out the left & right based on the margin.
-      // LATER: THe logic here assumes that the viewport is <= our size.
-      // If that's not the case, then this logic breaks.
-      int left = rect.left - (mw >> 1);
-      int right = rect.right + (mw >> 1);
-      if (left < 0) {
-        right -= left; // Adds the overage on the left side back to the right
-        left = 0;
-      }
-      if (right > sz.x) {
-        left -= right - sz.x; // Adds overage on right side back to left
-        right = sz.x;
-      }
-      // Figure out the top & bottom based on the margin. We assume our viewport
-      // is <= our size. If that's not the case, then this logic breaks.
-      int top = rect.top - (mh >> 1);
-      int bottom = rect.bottom + (mh >> 1);
-      if (top < 0) {
-        bottom -= top; // Adds the overage on the top back to the bottom
-        top = 0;
-      }
-      if (bottom > sz.y) {
-        top -= bottom - sz.y; // Adds overage on bottom back to top
-        bottom = sz.y;
-      }
-      // Set the origin based on our new calculated values.
-      calculatedCacheWindowRect.set(left, top, right, bottom);
+      budget.getCacheWindow(rect, sz.x, sz.y, level, calculatedCacheWindowRect);
       return calculatedCacheWindowRect;
     }
 
@@ -553,24 +1213,239 @@ public class BitmapSurfaceRenderer extends SurfaceRenderer {
     }
 
     /**
-     * Loads the relevant slice of the background bitmap that needs to be kept in memory. <p/> The
-     * loading can take a long time depending on the size.
+     * Expands the cache window outwards to the tile grid of a pyramid level.
+     */
+    private void alignToTiles(Rect rect, int level, Rect out) {
+      int size = TILE_SIZE << level;
+      out.set(
+          (rect.left / size) * size,
+          (rect.top / size) * size,
+          Math.min(backgroundSize.x, ((rect.right + size - 1) / size) * size),
+          Math.min(backgroundSize.y, ((rect.bottom + size - 1) / size) * size));
+    }
+
+    /**
+     * Queues the tiles of the background bitmap within the cache window that are not already in
+     * memory for decoding by the {@link DecodeThread}s, nearest to the center of the viewport
+     * first. Tiles that are still cached from earlier windows are reused.
      *
-     * @param rect The portion of the background bitmap to be cached
-     * @return The bitmap representing the requested area of the background
+     * @param rect The (tile aligned) portion of the background bitmap to be cached
+     * @param level The level of the image pyramid to cache
+     * @param x The center of the viewport
+     * @param y The center of the viewport
+     * @return The number of tiles queued
      */
-    private Bitmap loadCachedBitmap(Rect rect) {
-      return decoder.decodeRegion(rect, options);
+    private int loadCachedTiles(Rect rect, int level, int x, int y) {
+      Pyramid p = pyramid;
+      int size = TILE_SIZE << level;
+      int colMn = rect.left / size;
+      int rowMn = rect.top / size;
+      int colMx = (rect.right - 1) / size;
+      int rowMx = (rect.bottom - 1) / size;
+      // Ensure that the whole window fits in the cache
+      long windowBytes = (long) ((colMx - colMn) + 1) * ((rowMx - rowMn) + 1) * TILE_SIZE * TILE_SIZE * budget.getBytesPerPixel();
+      cache.tiles.setMaxSize(Math.max(windowBytes, budget.getBytes()));
+      int queued = 0;
+      for (int row = rowMn; row <= rowMx; row++) {
+        for (int col = colMn; col <= colMx; col++) {
+          int id = p.getTileId(level, col, row);
+          // Tiles already in memory are marked as recently used, so they are not evicted first
+          if (cache.tiles.get(id) != null) continue;
+          cache.queue.add(id, getTilePriority(level, col, row, x, y));
+          queued++;
+        }
+      }
+      return queued;
     }
 
     /**
-     * This function tries to recover from an OutOfMemoryError in the CacheThread.
+     * Queues the tiles seen along the predicted trajectory of a fling, from the start towards the
+     * landing point. The tiles of the landing point have already been queued, and are kept within
+     * the cache budget by limiting the number of trajectory tiles; the trajectory tiles are decoded
+     * after them.
+     *
+     * @param path    The start (left, top) and final (right, bottom) position of the view origin
+     * @param landing The (tile aligned) cache window at the landing point
+     * @param x       The center of the viewport at the landing point
+     * @param y       The center of the viewport at the landing point
+     * @return The number of tiles queued
      */
-    private void cacheBitmapOutOfMemoryError() {
-      if (getMemUsage() > 0) setMemUsage(getMemUsage() - 1);
-      GameLog.e(TAG, "OutOfMemory caught; reducing cache size to " + getMemUsage() + " percent.");
+    @SuppressWarnings("MethodWithMultipleLoops")
+    private int loadFlingTiles(Rect path, int w, int h, int level, Rect landing, int x, int y) {
+      Pyramid p = pyramid;
+      int size = TILE_SIZE << level;
+      long tileBytes = (long) TILE_SIZE * TILE_SIZE * budget.getBytesPerPixel();
+      int landingTiles = ((landing.width() + size - 1) / size) * ((landing.height() + size - 1) / size);
+      int tileBudget = (int) Math.min(Integer.MAX_VALUE, cache.tiles.getMaxSize() / tileBytes) - landingTiles;
+      int dx = path.right - path.left;
+      int dy = path.bottom - path.top;
+      int startX = path.left + (w >> 1);
+      int startY = path.top + (h >> 1);
+      // The landing tiles were queued by their distance from the landing point; the farthest is at a corner
+      int colMn = landing.left / size;
+      int rowMn = landing.top / size;
+      int colMx = (landing.right - 1) / size;
+      int rowMx = (landing.bottom - 1) / size;
+      int after = 1 + Math.max(
+          Math.max(getTilePriority(level, colMn, rowMn, x, y), getTilePriority(level, colMx, rowMn, x, y)),
+          Math.max(getTilePriority(level, colMn, rowMx, x, y), getTilePriority(level, colMx, rowMx, x, y)));
+      // Sample the trajectory every half viewport
+      int step = Math.max(1, Math.min(w, h) >> 1);
+      int samples = Math.max(Math.abs(dx), Math.abs(dy)) / step;
+      int added = 0;
+      for (int i = 0; i < samples; i++) {
+        int sx = path.left + (int) (((long) dx * i) / samples);
+        int sy = path.top + (int) (((long) dy * i) / samples);
+        int left = Math.max(0, sx / size);
+        int top = Math.max(0, sy / size);
+        int right = Math.min(p.columns[level] - 1, ((sx + w) - 1) / size);
+        int bottom = Math.min(p.rows[level] - 1, ((sy + h) - 1) / size);
+        for (int row = top; row <= bottom; row++) {
+          for (int col = left; col <= right; col++) {
+            if (added >= tileBudget) return added;
+            // The landing tiles keep their place in the queue
+            if ((col >= colMn) && (col <= colMx) && (row >= rowMn) && (row <= rowMx)) continue;
+            int id = p.getTileId(level, col, row);
+            if (cache.tiles.contains(id)) continue;
+            // After the landing tiles, nearest to the view at the start of the fling first
+            cache.queue.add(id, after + getTilePriority(level, col, row, startX, startY));
+            added++;
+          }
+        }
+      }
+      return added;
+    }
+
+    /**
+     * Returns the decode priority of a tile; the squared distance (in tiles) between the center of
+     * the tile and the given point.
+     */
+    private int getTilePriority(int level, int col, int row, int x, int y) {
+      int size = TILE_SIZE << level;
+      // Measured in half tiles, so that the tile centers are whole numbers
+      int dx = ((col << 1) + 1) - ((x << 1) / size);
+      int dy = ((row << 1) + 1) - ((y << 1) / size);
+      return (dx * dx) + (dy * dy);
+    }
+
+    /**
+     * Wait for the decode threads to finish the queued tiles. If the update is aborted (e.g., the
+     * cache is invalidated or suspended) the remaining queued tiles are dropped.
+     *
+     * @return true if all tiles were decoded
+     */
+    private boolean awaitCachedTiles() {
+      while (running && (cache.getState() == CacheState.IS_UPDATING)) {
+        try {
+          cache.queue.awaitIdle();
+          return cache.getState() == CacheState.IS_UPDATING;
+        } catch (InterruptedException ignored) {
+          // State may have changed; check again
+        }
+      }
+      cache.queue.clear();
+      return false;
     }
 
   }
 
+  /**
+   * This thread decodes tiles taken from the {@link TileDecodeQueue} of the {@link CacheBitmap}
+   * and publishes them into the tile cache. Each DecodeThread has its own decoder in the
+   * {@link TileSource}, so that the threads can decode disjoint regions of the background
+   * concurrently.
+   */
+  @SuppressWarnings("ClassExplicitlyExtendsThread")
+  class DecodeThread extends Thread {
+    private volatile boolean running = true;
+    // The CacheBitmap
+    private final CacheBitmap cache;
+    // The index of the decoder owned by this thread
+    private final int index;
+    // Options for decoding the tiles (not shared, as decoding writes to it)
+    private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+    // Used to hold the region of a tile while decoding
+    private final Rect tileRect = new Rect(0, 0, 0, 0);
+
+    DecodeThread(CacheBitmap cached, int i) {
+      setName(DECODE_THREAD + i);
+      cache = cached;
+      index = i;
+      decodeOptions.inPreferredConfig = options.inPreferredConfig;
+    }
+
+    @SuppressWarnings({"RefusedBequest", "WhileLoopSpinsOnField"})
+    @Override
+    public void run() {
+      while (running) {
+        int id;
+        try {
+          id = cache.queue.take();
+        } catch (InterruptedException ignored) {
+          continue;
+        }
+        //noinspection ErrorNotRethrown
+        try {
+          Pyramid p = pyramid;
+          if (id < p.getTileCount()) {
+            int level = p.getTileLevel(id);
+            int col = p.getTileColumn(id, level);
+            int row = p.getTileRow(id, level);
+            TileDiskCache disk = diskCache;
+            Bitmap bmp = (disk == null) ? null : disk.readTile(level, col, row);
+            TileSource source = tileSource;
+            if ((bmp == null) && (source != null)) {
+              p.getTileRect(id, tileRect);
+              bmp = source.decodeTile(index, level, col, row, tileRect, decodeOptions);
+              if ((bmp != null) && (disk != null)) {
+                disk.writeTile(level, col, row, bmp);
+              }
+            }
+            if (bmp != null) {
+              cache.tiles.put(id, bmp);
+              // Refine the view if it was drawn without this tile
+              if (!cache.baseComplete) requestRender();
+            }
+          }
+        } catch (OutOfMemoryError ignored) {
+          GameLog.d(TAG, "DecodeThread out of memory");
+          // Out of memory ERROR detected. Lower the memory allocation
+          cacheBitmapOutOfMemoryError(cache);
+          synchronized (cache) {
+            if (cache.getState() == CacheState.IS_UPDATING) {
+              cache.setState(CacheState.BEGIN_UPDATE);
+              if (cache.cacheThread != null) cache.cacheThread.interrupt();
+            }
+          }
+        } finally {
+          cache.queue.done(id);
+        }
+      }
+    }
+
+    public void setRunning(boolean r) {
+      running = r;
+    }
+
+  }
+
+  /**
+   * This function tries to recover from an OutOfMemoryError in a DecodeThread.
+   */
+  private void cacheBitmapOutOfMemoryError(CacheBitmap cache) {
+    budget.onOutOfMemory();
+    cache.tiles.setMaxSize(budget.getBytes());
+    GameLog.e(TAG, "OutOfMemory caught; reducing cache size to " + budget.getPercent() + " percent.");
+  }
+
+  /**
+   * This function shrinks the cache in response to a trim request from the system. The cache
+   * window is recalculated on the next draw.
+   */
+  private void cacheBitmapTrimMemory(CacheBitmap cache, int level) {
+    budget.onTrimMemory(level);
+    cache.tiles.setMaxSize(budget.getBytes());
+    GameLog.d(TAG, "Memory trim level " + level + "; reducing cache size to " + budget.getPercent() + " percent.");
+  }
+
 }
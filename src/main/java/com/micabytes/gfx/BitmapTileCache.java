@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+/**
+ * BitmapTileCache is a byte-budgeted LRU cache of decoded bitmap tiles. Tiles are identified by a
+ * dense integer id (e.g., row * columns + column), which allows the cache to keep its bookkeeping
+ * in primitive arrays instead of a map of boxed keys.
+ * <p/>
+ * Evicted bitmaps are not recycled, as the render thread may still be drawing them; they are left
+ * to the garbage collector.
+ */
+@SuppressWarnings("AssignmentToNull")
+public final class BitmapTileCache {
+  private static final int NONE = -1;
+  // The cached tiles, indexed by tile id
+  private Bitmap[] tiles = new Bitmap[0];
+  // Doubly linked LRU list; head is the most recently used tile
+  private int[] prev = new int[0];
+  private int[] next = new int[0];
+  private int head = NONE;
+  private int tail = NONE;
+  // Current and maximum size of the cache in bytes
+  private long size;
+  private long maxSize;
+
+  public BitmapTileCache(long maxBytes) {
+    maxSize = maxBytes;
+  }
+
+  /**
+   * Clear the cache and resize it to hold the tile ids [0, capacity)
+   */
+  public synchronized void reset(int capacity) {
+    tiles = new Bitmap[capacity];
+    prev = new int[capacity];
+    next = new int[capacity];
+    head = NONE;
+    tail = NONE;
+    size = 0L;
+  }
+
+  public synchronized int getCapacity() {
+    return tiles.length;
+  }
+
+  /**
+   * Returns the tile with the given id, marking it as recently used. Returns null if the tile is
+   * not cached.
+   */
+  @Nullable
+  public synchronized Bitmap get(int id) {
+    if ((id < 0) || (id >= tiles.length)) return null;
+    Bitmap bmp = tiles[id];
+    if (bmp != null) {
+      unlink(id);
+      linkFirst(id);
+    }
+    return bmp;
+  }
+
+  /**
+   * Returns true if the tile is cached. Does not affect the LRU order.
+   */
+  public synchronized boolean contains(int id) {
+    return (id >= 0) && (id < tiles.length) && (tiles[id] != null);
+  }
+
+  /**
+   * Add a tile to the cache, evicting the least recently used tiles if the cache exceeds its size.
+   */
+  public synchronized void put(int id, Bitmap bmp) {
+    if ((id < 0) || (id >= tiles.length)) return;
+    if (tiles[id] != null) {
+      size -= sizeOf(tiles[id]);
+      unlink(id);
+    }
+    tiles[id] = bmp;
+    size += sizeOf(bmp);
+    linkFirst(id);
+    trimToSize(maxSize);
+  }
+
+  public synchronized void remove(int id) {
+    if ((id < 0) || (id >= tiles.length) || (tiles[id] == null)) return;
+    size -= sizeOf(tiles[id]);
+    tiles[id] = null;
+    unlink(id);
+  }
+
+  public synchronized void evictAll() {
+    while (tail != NONE) {
+      remove(tail);
+    }
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public synchronized long getMaxSize() {
+    return maxSize;
+  }
+
+  public synchronized void setMaxSize(long bytes) {
+    maxSize = bytes;
+    trimToSize(maxSize);
+  }
+
+  /**
+   * Evict least recently used tiles until the cache is within the given size. The most recently
+   * used tile is never evicted.
+   */
+  private void trimToSize(long bytes) {
+    while ((size > bytes) && (tail != NONE) && (tail != head)) {
+      remove(tail);
+    }
+  }
+
+  private void linkFirst(int id) {
+    prev[id] = NONE;
+    next[id] = head;
+    if (head != NONE) prev[head] = id;
+    head = id;
+    if (tail == NONE) tail = id;
+  }
+
+  private void unlink(int id) {
+    int p = prev[id];
+    int n = next[id];
+    if (p != NONE) next[p] = n;
+    else if (head == id) head = n;
+    if (n != NONE) prev[n] = p;
+    else if (tail == id) tail = p;
+    prev[id] = NONE;
+    next[id] = NONE;
+  }
+
+  private static long sizeOf(Bitmap bmp) {
+    return (long) bmp.getRowBytes() * bmp.getHeight();
+  }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * CacheBudget manages the memory budget of a bitmap cache. The budget is a percentage of the
+ * maximum heap size. It is lowered when memory runs short (an OutOfMemoryError in the cache, or a
+ * trim request from the system), and grows back step by step once the pressure has subsided.
+ */
+final class CacheBudget {
+  // Percent of the configured budget to keep at the various trim levels
+  private static final int TRIM_RUNNING_MODERATE = 75;
+  private static final int TRIM_RUNNING_LOW = 50;
+  private static final int TRIM_RUNNING_CRITICAL = 25;
+  private static final int TRIM_BACKGROUND = 0;
+  private static final int PERCENT = 100;
+  /**
+   * How long (ms) to wait after memory pressure before the budget starts growing again
+   */
+  private static final long RECOVERY_DELAY = 10000L;
+  // The configured (maximum) and current percentage of the heap to use
+  private final int maxPercent;
+  private float percent;
+  private long lastPressure;
+  // Bytes of the heap budget taken by other data of the renderer (e.g., the compressed image)
+  private long reserved;
+  // Bytes per pixel of the cached bitmaps
+  private final int bytesPerPixel;
+
+  CacheBudget(int memUsage, Bitmap.Config config) {
+    maxPercent = memUsage;
+    percent = memUsage;
+    bytesPerPixel = getBytesPerPixel(config);
+  }
+
+  static int getBytesPerPixel(Bitmap.Config config) {
+    if (config == null) return 4;
+    switch (config) {
+      case ALPHA_8:
+        return 1;
+      case RGB_565:
+      case ARGB_4444:
+        return 2;
+      default:
+        return 4;
+    }
+  }
+
+  int getBytesPerPixel() {
+    return bytesPerPixel;
+  }
+
+  synchronized int getPercent() {
+    return (int) percent;
+  }
+
+  /**
+   * The number of bytes the cache may use
+   */
+  synchronized long getBytes() {
+    return Math.max(0L, (long) ((Runtime.getRuntime().maxMemory() * percent) / PERCENT) - reserved);
+  }
+
+  /**
+   * Set the number of bytes of the budget that are taken by data outside the cache
+   */
+  synchronized void setReserved(long bytes) {
+    reserved = bytes;
+  }
+
+  /**
+   * Halve the budget after an OutOfMemoryError
+   */
+  synchronized void onOutOfMemory() {
+    percent /= 2;
+    lastPressure = System.currentTimeMillis();
+  }
+
+  /**
+   * Lower the budget in response to ComponentCallbacks2.onTrimMemory
+   */
+  synchronized void onTrimMemory(int level) {
+    int keep;
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) keep = TRIM_BACKGROUND;
+    else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) keep = TRIM_RUNNING_CRITICAL;
+    else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) keep = TRIM_RUNNING_LOW;
+    else keep = TRIM_RUNNING_MODERATE;
+    percent = Math.min(percent, (maxPercent * keep) / (float) PERCENT);
+    lastPressure = System.currentTimeMillis();
+  }
+
+  /**
+   * Grow the budget back towards the configured size, if there has been no memory pressure for a
+   * while. Called after each successful cache update.
+   *
+   * @return true if the budget changed
+   */
+  synchronized boolean recover() {
+    if (percent >= maxPercent) return false;
+    if ((System.currentTimeMillis() - lastPressure) < RECOVERY_DELAY) return false;
+    // Grow back in steps of 1% (or at least a tenth of the configured budget)
+    percent = Math.min(maxPercent, percent + Math.max(1.0f, maxPercent / 10.0f));
+    return true;
+  }
+
+  /**
+   * Determine the dimensions of a cache window around the viewport. The window has the aspect
+   * ratio of the viewport, and the largest size that fits in the budget; its minimum size is that
+   * of the viewport.
+   *
+   * @param rect   The current viewport
+   * @param width  The width of the image
+   * @param height The height of the image
+   * @param level  The pyramid level of the cache; each level has a quarter of the pixels of the
+   *               level below it
+   * @param out    Set to the dimensions of the cache window
+   */
+  @SuppressWarnings("NumericCastThatLosesPrecision")
+  void getCacheWindow(Rect rect, int width, int height, int level, Rect out) {
+    int vw = rect.width();
+    int vh = rect.height();
+    double pixels = (double) getBytes() / bytesPerPixel * (1L << (level << 1));
+    double scale = ((vw > 0) && (vh > 0)) ? Math.sqrt(pixels / ((double) vw * vh)) : 1.0;
+    if (scale < 1.0) scale = 1.0;
+    // Trim margins to image size
+    int mw = Math.min((int) (vw * scale) - vw, Math.max(0, width - vw));
+    int mh = Math.min((int) (vh * scale) - vh, Math.max(0, height - vh));
+    // Center the window on the viewport, moving it inside the image where necessary
+    int left = rect.left - (mw >> 1);
+    int right = rect.right + (mw >> 1);
+    if (left < 0) {
+      right -= left;
+      left = 0;
+    }
+    if (right > width) {
+      left = Math.max(0, left - (right - width));
+      right = width;
+    }
+    int top = rect.top - (mh >> 1);
+    int bottom = rect.bottom + (mh >> 1);
+    if (top < 0) {
+      bottom -= top;
+      top = 0;
+    }
+    if (bottom > height) {
+      top = Math.max(0, top - (bottom - height));
+      bottom = height;
+    }
+    out.set(left, top, right, bottom);
+  }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+/**
+ * FrameStats records how long the frames of a {@link SurfaceRenderer} take, and how the time is
+ * split between the layers. Durations are kept in fixed-size log-linear histograms (as in
+ * HdrHistogram: 16 buckets per power of two, so percentiles are accurate to about 6%), which
+ * cover 1 microsecond to a minute; recording does not allocate.
+ * <p/>
+ * The stages of a frame are recorded by the viewport and the MicaSurfaceView; frames that take
+ * longer than 16 ms (a missed refresh) or 33 ms (two missed refreshes) are counted separately.
+ */
+@SuppressWarnings({"unused", "MagicNumber"})
+public final class FrameStats {
+  public static final int BASE = 0;
+  public static final int LAYER = 1;
+  public static final int FINAL = 2;
+  public static final int PRESENT = 3;
+  public static final int FRAME = 4;
+  private static final int STAGES = 5;
+  private static final String[] STAGE_NAMES = {"base", "layer", "final", "present", "frame"};
+  private static final long JANK_MICROS = 16000L;
+  private static final long SEVERE_JANK_MICROS = 33000L;
+  // Histogram layout: values below 2 * SUB_BUCKETS get a bucket each, larger values SUB_BUCKETS per power of two
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_MAGNITUDE = 25;
+  private static final int BUCKETS = (SUB_BUCKETS << 1) + ((MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKETS);
+  private final long[][] histograms = new long[STAGES][BUCKETS];
+  private final long[] counts = new long[STAGES];
+  private final long[] totals = new long[STAGES];
+  private final long[] maxima = new long[STAGES];
+  private long jankFrames;
+  private long severeJankFrames;
+  // The overlay (see draw)
+  private final Paint textPaint = new Paint();
+  private final Paint backPaint = new Paint();
+  private final StringBuilder text = new StringBuilder(64);
+  private char[] chars = new char[64];
+
+  public FrameStats() {
+    textPaint.setAntiAlias(true);
+    textPaint.setColor(Color.WHITE);
+    textPaint.setTextSize(24.0f);
+    backPaint.setColor(0x80000000);
+  }
+
+  /**
+   * Record the duration of a stage of a frame
+   */
+  public synchronized void record(int stage, long nanos) {
+    long micros = Math.max(0L, nanos / 1000L);
+    histograms[stage][bucketOf(micros)]++;
+    counts[stage]++;
+    totals[stage] += micros;
+    if (micros > maxima[stage]) maxima[stage] = micros;
+    if (stage == FRAME) {
+      if (micros > JANK_MICROS) jankFrames++;
+      if (micros > SEVERE_JANK_MICROS) severeJankFrames++;
+    }
+  }
+
+  private static int bucketOf(long micros) {
+    if (micros < (SUB_BUCKETS << 1)) return (int) micros;
+    int magnitude = Math.min(MAX_MAGNITUDE, 63 - Long.numberOfLeadingZeros(micros));
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int sub = (int) Math.min((SUB_BUCKETS << 1) - 1, micros >> shift);
+    return (SUB_BUCKETS << 1) + ((magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKETS) + (sub - SUB_BUCKETS);
+  }
+
+  /**
+   * The largest value (in microseconds) that falls in a bucket
+   */
+  private static long highestOf(int bucket) {
+    if (bucket < (SUB_BUCKETS << 1)) return bucket;
+    int k = bucket - (SUB_BUCKETS << 1);
+    int shift = (k / SUB_BUCKETS) + 1;
+    long sub = (k % SUB_BUCKETS) + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * The number of recorded durations of a stage (for FRAME, the number of frames)
+   */
+  public synchronized long getCount(int stage) {
+    return counts[stage];
+  }
+
+  /**
+   * The number of frames that took longer than 16 ms
+   */
+  public synchronized long getJankFrames() {
+    return jankFrames;
+  }
+
+  /**
+   * The number of frames that took longer than 33 ms
+   */
+  public synchronized long getSevereJankFrames() {
+    return severeJankFrames;
+  }
+
+  /**
+   * The mean duration of a stage, in ms
+   */
+  public synchronized float getMean(int stage) {
+    return (counts[stage] == 0L) ? 0.0f : ((float) totals[stage] / counts[stage]) / 1000.0f;
+  }
+
+  /**
+   * The longest duration of a stage, in ms
+   */
+  public synchronized float getMax(int stage) {
+    return maxima[stage] / 1000.0f;
+  }
+
+  /**
+   * The duration of a stage that the given percentage (0 - 100) of the recorded durations do not
+   * exceed, in ms
+   */
+  public synchronized float getPercentile(int stage, float percentile) {
+    long count = counts[stage];
+    if (count == 0L) return 0.0f;
+    long rank = Math.max(1L, (long) Math.ceil((percentile / 100.0) * count));
+    long[] histogram = histograms[stage];
+    long seen = 0L;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += histogram[b];
+      if (seen >= rank) return Math.min(highestOf(b), maxima[stage]) / 1000.0f;
+    }
+    return maxima[stage] / 1000.0f;
+  }
+
+  public synchronized void reset() {
+    for (int s = 0; s < STAGES; s++) {
+      long[] histogram = histograms[s];
+      for (int b = 0; b < BUCKETS; b++) {
+        histogram[b] = 0L;
+      }
+      counts[s] = 0L;
+      totals[s] = 0L;
+      maxima[s] = 0L;
+    }
+    jankFrames = 0L;
+    severeJankFrames = 0L;
+  }
+
+  /**
+   * Draw the statistics in the top left corner of a canvas: the 50th, 95th and 99th percentile and
+   * the maximum of every stage, and the number of slow frames. Does not allocate.
+   */
+  @SuppressWarnings("NumericCastThatLosesPrecision")
+  public synchronized void draw(Canvas canvas) {
+    float lineHeight = textPaint.getTextSize() * 1.25f;
+    float width = textPaint.getTextSize() * 20.0f;
+    canvas.drawRect(0.0f, 0.0f, width, lineHeight * (STAGES + 1.5f), backPaint);
+    float y = lineHeight;
+    for (int s = 0; s < STAGES; s++) {
+      text.setLength(0);
+      text.append(STAGE_NAMES[s]);
+      appendMillis(" p50 ", getPercentile(s, 50.0f));
+      appendMillis(" p95 ", getPercentile(s, 95.0f));
+      appendMillis(" p99 ", getPercentile(s, 99.0f));
+      appendMillis(" max ", getMax(s));
+      drawLine(canvas, y);
+      y += lineHeight;
+    }
+    text.setLength(0);
+    text.append(counts[FRAME]).append(" frames, ").append(jankFrames).append(" > 16ms, ").append(severeJankFrames).append(" > 33ms");
+    drawLine(canvas, y);
+  }
+
+  @SuppressWarnings("NumericCastThatLosesPrecision")
+  private void appendMillis(String label, float ms) {
+    int tenths = Math.round(ms * 10.0f);
+    text.append(label).append(tenths / 10).append('.').append(tenths % 10);
+  }
+
+  private void drawLine(Canvas canvas, float y) {
+    int n = text.length();
+    if (chars.length < n) chars = new char[n];
+    text.getChars(0, n, chars, 0);
+    canvas.drawText(chars, 0, n, textPaint.getTextSize() * 0.5f, y, textPaint);
+  }
+
+}
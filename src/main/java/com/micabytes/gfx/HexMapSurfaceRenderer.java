@@ -14,6 +14,7 @@ package com.micabytes.gfx;
 
 import android.content.Context;
 import android.graphics.Point;
+import android.graphics.Rect;
 
 import com.micabytes.map.HexMap;
 
@@ -26,9 +27,12 @@ import com.micabytes.map.HexMap;
 public class HexMapSurfaceRenderer extends SurfaceRenderer {
     // The HexMap object
     private HexMap gameSurfaceTileMap;
+    private final Rect dirtyRegion = new Rect();
 
     public HexMapSurfaceRenderer(Context con) {
         super(con);
+        // HexMap.drawBase only draws the base clip
+        viewPort.setScrollBlit(true);
     }
 
     private static int getRenderWidth() {
@@ -44,9 +48,18 @@ public class HexMapSurfaceRenderer extends SurfaceRenderer {
      */
     public void setTileMap(HexMap map) {
         gameSurfaceTileMap = map;
+        map.setRenderer(this);
         backgroundSize.set(getRenderWidth(), getRenderHeight());
     }
 
+    @Override
+    public boolean prepareFrame(Rect dirty) {
+        if ((gameSurfaceTileMap != null) && gameSurfaceTileMap.takeDirtyRegion(dirtyRegion)) {
+            markDirty(dirtyRegion);
+        }
+        return super.prepareFrame(dirty);
+    }
+
     @Override
     public void drawBase() {
         gameSurfaceTileMap.drawBase(context, viewPort);
@@ -13,6 +13,7 @@
 package com.micabytes.gfx;
 
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.res.Resources;
 import android.databinding.BindingAdapter;
@@ -33,6 +34,8 @@ import android.widget.ImageView;
 import com.micabytes.GameApplication;
 import com.micabytes.util.GameLog;
 
+import java.util.Arrays;
+
 /**
  * ImageHandler is a singleton class that is used to manage bitmaps resources used programmatically
  * in the app (i.e., not bitmaps assigned in layouts). By allocating and managing them in a central
@@ -48,9 +51,15 @@ public final class ImageHandler {
   private static final int PIXEL_ROUNDING = 12;
   public static final float DENSITY_MINIMUM = 0.1f;
   public static final int MEGABYTE = 1024;
+  /**
+   * The smallest mipmap of an image is 1 / (1 << MAX_MIPMAP_LEVEL) of its size
+   */
+  public static final int MAX_MIPMAP_LEVEL = 3;
   private static float density = 0.0f;
-  // Bitmap cache
-  private static LruCache<Integer, Bitmap> memoryCache = null;
+  // Bitmap cache, by resource id and mipmap level (see cacheKey); the images not in the atlas
+  private static LruCache<Long, Bitmap> memoryCache = null;
+  // The atlas used to draw map tiles (null if none)
+  @Nullable private static volatile TextureAtlas atlas = null;
 
   private ImageHandler() {
     initCache();
@@ -59,14 +68,36 @@ public final class ImageHandler {
   private static void initCache() {
     int memoryClass = ((ActivityManager) GameApplication.getInstance().getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
     int memoryCacheSize = MEGABYTE * MEGABYTE * memoryClass / 8;
-    memoryCache = new LruCache<Integer, Bitmap>(memoryCacheSize) {
+    memoryCache = new LruCache<Long, Bitmap>(memoryCacheSize) {
       @Override
-      protected int sizeOf(Integer key, Bitmap value) {
+      protected int sizeOf(Long key, Bitmap value) {
         return value.getRowBytes() * value.getHeight();
       }
+
+      @Override
+      protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+        // The mipmaps of an image go with it
+        if (evicted && (getLevel(key) == 0)) {
+          for (int l = 1; l <= MAX_MIPMAP_LEVEL; l++) {
+            remove(cacheKey(getResource(key), l));
+          }
+        }
+      }
     };
   }
 
+  private static long cacheKey(int key, int level) {
+    return ((long) level << 32) | (key & 0xFFFFFFFFL);
+  }
+
+  private static int getResource(long cacheKey) {
+    return (int) cacheKey;
+  }
+
+  private static int getLevel(long cacheKey) {
+    return (int) (cacheKey >>> 32);
+  }
+
   public static float getDensity() {
     setDensity();
     return density;
@@ -91,7 +122,7 @@ public final class ImageHandler {
     if (key == 0)
       GameLog.d(TAG, "Null resource sent to get()");
     if (memoryCache == null) initCache();
-    Bitmap cached = memoryCache.get(key);
+    Bitmap cached = memoryCache.get(cacheKey(key, 0));
     if (cached != null)
       return cached;
     Bitmap ret = loadBitmap(key, config);
@@ -99,7 +130,7 @@ public final class ImageHandler {
       Bitmap.Config conf = Bitmap.Config.ARGB_8888;
       return Bitmap.createBitmap(1, 1, conf);
     }
-    memoryCache.put(key, ret);
+    memoryCache.put(cacheKey(key, 0), ret);
     return ret;
   }
 
@@ -111,6 +142,109 @@ public final class ImageHandler {
     return BitmapFactory.decodeResource(GameApplication.getInstance().getResources(), key, opts);
   }
 
+  /**
+   * Returns an image scaled down by 1 << level (1 to {@link #MAX_MIPMAP_LEVEL}), creating it (by
+   * successive halving) if necessary. The mipmaps of images in the atlas are scaled from their
+   * region of the atlas; those of other images are kept in the bitmap cache, and are evicted with
+   * the image.
+   */
+  @NonNull
+  public static Bitmap getMipmap(int key, int level) {
+    TextureAtlas current = atlas;
+    int region = (current == null) ? TextureAtlas.NOT_FOUND : current.indexOf(key);
+    if (region != TextureAtlas.NOT_FOUND) return current.getMipmap(region, level);
+    if (memoryCache == null) initCache();
+    Bitmap cached = memoryCache.get(cacheKey(key, level));
+    if (cached != null) return cached;
+    Bitmap ret = halve((level == 1) ? get(key) : getMipmap(key, level - 1), null);
+    memoryCache.put(cacheKey(key, level), ret);
+    return ret;
+  }
+
+  /**
+   * Returns a bitmap of half the size of an image (or a region of it), drawn with filtering
+   */
+  static Bitmap halve(Bitmap src, @Nullable Rect srcRect) {
+    int w = Math.max(1, ((srcRect == null) ? src.getWidth() : srcRect.width()) >> 1);
+    int h = Math.max(1, ((srcRect == null) ? src.getHeight() : srcRect.height()) >> 1);
+    Bitmap ret = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+    Paint filter = new Paint();
+    filter.setFilterBitmap(true);
+    new Canvas(ret).drawBitmap(src, srcRect, new Rect(0, 0, w, h), filter);
+    return ret;
+  }
+
+  /**
+   * Drop the mipmaps of all images (including those of the atlas); they are created again when
+   * needed
+   */
+  public static void clearMipmaps() {
+    if (memoryCache != null) {
+      for (Long key : memoryCache.snapshot().keySet()) {
+        if (getLevel(key) > 0) memoryCache.remove(key);
+      }
+    }
+    TextureAtlas current = atlas;
+    if (current != null) current.clearMipmaps();
+  }
+
+  /**
+   * Release memory in response to ComponentCallbacks2.onTrimMemory (called by GameApplication)
+   */
+  public static void onTrimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) clearMipmaps();
+  }
+
+  /**
+   * Packs a set of images (e.g., all the tiles of a map) into a {@link TextureAtlas}. The images
+   * are decoded one at a time and are not added to the bitmap cache.
+   */
+  public static TextureAtlas createAtlas(int[] keys, Bitmap.Config config) {
+    int[] sorted = keys.clone();
+    Arrays.sort(sorted);
+    int n = 0;
+    for (int key : sorted) {
+      if ((key != 0) && ((n == 0) || (sorted[n - 1] != key))) sorted[n++] = key;
+    }
+    int[] ids = Arrays.copyOf(sorted, n);
+    int[] widths = new int[n];
+    int[] heights = new int[n];
+    for (int i = 0; i < n; i++) {
+      BitmapFactory.Options opt = getDimensions(ids[i]);
+      widths[i] = Math.max(1, opt.outWidth);
+      heights[i] = Math.max(1, opt.outHeight);
+    }
+    TextureAtlas ret = new TextureAtlas(ids, widths, heights, TextureAtlas.DEFAULT_SHEET_SIZE, config);
+    for (int i = 0; i < n; i++) {
+      Bitmap bmp = loadBitmap(ids[i], config);
+      if (bmp == null) {
+        GameLog.e(TAG, "Could not load image " + ids[i] + " for the atlas");
+        continue;
+      }
+      ret.put(i, bmp);
+      bmp.recycle();
+    }
+    GameLog.d(TAG, "Atlas: " + n + " images in " + ret.getSheetCount() + " sheets, " + (ret.getByteCount() / MEGABYTE) + " kB");
+    return ret;
+  }
+
+  /**
+   * Returns the atlas that map tiles (TileMapZone) are drawn from, or null if they are drawn from
+   * separate bitmaps
+   */
+  @Nullable
+  public static TextureAtlas getAtlas() {
+    return atlas;
+  }
+
+  /**
+   * Set the atlas that map tiles are drawn from. Images that are not in the atlas are still drawn
+   * from separate bitmaps.
+   */
+  public static void setAtlas(@Nullable TextureAtlas textureAtlas) {
+    atlas = textureAtlas;
+  }
+
   @SuppressWarnings("unused")
   @Nullable
   public static Bitmap getSceneBitmap(int bkg, int left, int right) {
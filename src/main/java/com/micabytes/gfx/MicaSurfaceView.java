@@ -16,9 +16,13 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
@@ -42,6 +46,8 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
   @NonNls public static final String GOOGLE = "google";
   @NonNls public static final String ASUS = "asus";
   @NonNls public static final String NEXUS_7 = "Nexus 7";
+  public static final int RENDERMODE_WHEN_DIRTY = 0;
+  public static final int RENDERMODE_CONTINUOUSLY = 1;
   /**
    * The Game Controller. This where we send UI events other than scroll and pinch-zoom in order to be handled
    */
@@ -56,8 +62,11 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
   private GestureDetector gesture;
   private ScaleGestureDetector scaleGesture;
   private long lastScaleTime;
+  // The position of the view, used while handling touch events
+  private final Point touchPoint = new Point();
   // Rendering Thread
-  private GameSurfaceViewThread thread;
+  private volatile GameSurfaceViewThread thread;
+  private volatile int renderMode = RENDERMODE_CONTINUOUSLY;
   //private Runnable threadEvent = null;
 
   public MicaSurfaceView(Context context) {
@@ -106,6 +115,35 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
    */
   public void setRenderer(SurfaceRenderer r) {
     renderer = r;
+    renderer.setRenderRequest(new Runnable() {
+      @Override
+      public void run() {
+        requestRender();
+      }
+    });
+  }
+
+  /**
+   * Set the render mode: {@link #RENDERMODE_CONTINUOUSLY} (the default) draws a frame on every
+   * display refresh, e.g. for animations; {@link #RENDERMODE_WHEN_DIRTY} only draws when a frame is
+   * requested (by touch, fling and zoom, changes to the view or the scene, or
+   * {@link #requestRender()}).
+   */
+  public void setRenderMode(int mode) {
+    renderMode = mode;
+    requestRender();
+  }
+
+  public int getRenderMode() {
+    return renderMode;
+  }
+
+  /**
+   * Request a frame; e.g., after the game state has changed. Can be called from any thread.
+   */
+  public void requestRender() {
+    GameSurfaceViewThread t = thread;
+    if (t != null) t.requestRender();
   }
 
   // Return the position of the current view (center)
@@ -217,15 +255,32 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
   // ----------------------------------------------------------------------
 
   /**
-   * The Rendering thread for the MicaSurfaceView
+   * The Rendering thread for the MicaSurfaceView. Frames are paced to the display refresh: the
+   * thread runs a Looper, and draws in Choreographer frame callbacks (API 16+) or every FRAME_DELAY
+   * ms. In {@link #RENDERMODE_CONTINUOUSLY} a frame is drawn on every refresh; in
+   * {@link #RENDERMODE_WHEN_DIRTY} only after {@link #requestRender()}, so that the thread is idle
+   * while nothing changes.
    */
   @SuppressWarnings("ClassExplicitlyExtendsThread")
   class GameSurfaceViewThread extends Thread {
     private static final int BUG_DELAY = 500;
+    private static final long FRAME_DELAY = 16L;
     private final int delay;
     private final SurfaceHolder surfaceHolder;
+    private final Rect dirty = new Rect();
     private boolean running;
     private boolean hasFocus;
+    // The handler of the thread's Looper (null if not running), and whether a frame is scheduled
+    private Handler handler;
+    private boolean framePending;
+    // Frame callbacks from the Choreographer (null below API 16)
+    private VsyncCallback vsync;
+    private final Runnable frame = new Runnable() {
+      @Override
+      public void run() {
+        drawFrame();
+      }
+    };
 
     GameSurfaceViewThread(SurfaceHolder surface) {
       setName(GameSurfaceViewThread.class.getName());
@@ -244,11 +299,15 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
       }
     }
 
-    public void setRunning(boolean run) {
+    public synchronized void setRunning(boolean run) {
       running = run;
+      if (!run && (handler != null)) {
+        handler.getLooper().quit();
+        handler = null;
+      }
     }
 
-    @SuppressWarnings({"RefusedBequest", "WhileLoopSpinsOnField", "BusyWait"})
+    @SuppressWarnings("RefusedBequest")
     @Override
     public void run() {
       try {
@@ -256,19 +315,48 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
       } catch (InterruptedException ignored) {
         // NOOP
       }
-      Canvas canvas = null;
-      // This is the rendering loop; it goes until asked to quit.
-      while (running) {
-        try {
-          Thread.sleep(5); // CPU timeout - help keep things cool
-        } catch (InterruptedException ignored) {
-          // NOOP
+      Looper.prepare();
+      synchronized (this) {
+        if (!running) return;
+        handler = new Handler();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+          vsync = new VsyncCallback(this);
         }
+      }
+      requestRender();
+      // This is the rendering loop; it goes until asked to quit.
+      Looper.loop();
+    }
+
+    /**
+     * Schedule a frame for the next display refresh. Can be called from any thread.
+     */
+    synchronized void requestRender() {
+      if ((handler == null) || framePending) return;
+      framePending = true;
+      if (vsync != null) {
+        vsync.schedule();
+      } else {
+        handler.postDelayed(frame, FRAME_DELAY);
+      }
+    }
+
+    void drawFrame() {
+      synchronized (this) {
+        framePending = false;
+        if (!running) return;
+      }
+      long start = System.nanoTime();
+      // Only lock (and post) the part of the surface that has changed
+      if (renderer.prepareFrame(dirty)) {
+        // Compose before locking the surface, so that it is only held for the copy of the frame
+        renderer.compose();
+        Canvas canvas = null;
         try {
-          canvas = surfaceHolder.lockCanvas();
+          canvas = surfaceHolder.lockCanvas(dirty);
           if (canvas != null) {
             synchronized (surfaceHolder) {
-              renderer.draw(canvas);
+              renderer.present(canvas);
             }
           }
         } finally {
@@ -276,18 +364,46 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
             surfaceHolder.unlockCanvasAndPost(canvas);
           }
         }
+        renderer.getFrameStats().record(FrameStats.FRAME, System.nanoTime() - start);
       }
+      if (getRenderMode() == RENDERMODE_CONTINUOUSLY) requestRender();
     }
 
     public synchronized void onWindowFocusChanged(boolean focus) {
       hasFocus = focus;
       if (hasFocus) {
-        notifyAll();
+        requestRender();
       }
     }
 
   }
 
+  /**
+   * Choreographer frame callback of the rendering thread. Only loaded on API 16+.
+   */
+  private static final class VsyncCallback implements Choreographer.FrameCallback {
+    private final GameSurfaceViewThread thread;
+    private final Choreographer choreographer;
+
+    /**
+     * Must be created on the rendering thread, to get the Choreographer of its Looper
+     */
+    VsyncCallback(GameSurfaceViewThread t) {
+      thread = t;
+      choreographer = Choreographer.getInstance();
+    }
+
+    void schedule() {
+      choreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      thread.drawFrame();
+    }
+
+  }
+
   // ----------------------------------------------------------------------
 
   /**
@@ -300,7 +416,7 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
     if (consumed) return true;
     scaleGesture.onTouchEvent(event);
     // Calculate actual event position in background view
-    Point point = new Point();
+    Point point = touchPoint;
     renderer.getViewPosition(point);
     float zoom = renderer.getZoom();
     int x = (int) (point.x + (event.getX() * zoom));
@@ -444,9 +560,7 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
         setState(TouchState.IN_TOUCH);
         touchDown.x = (int) event.getX();
         touchDown.y = (int) event.getY();
-        Point p = new Point();
-        renderer.getViewPosition(p);
-        viewCenterAtDown.set(p.x, p.y);
+        renderer.getViewPosition(viewCenterAtDown);
       }
       return true;
     }
@@ -498,7 +612,6 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
       synchronized (this) {
         backgroundSizeAtFling = renderer.getBackgroundSize();
         setState(TouchState.ON_FLING);
-        renderer.suspend();
         scroller.fling(
             viewCenterAtFling.x,
             viewCenterAtFling.y,
@@ -508,6 +621,8 @@ public class MicaSurfaceView extends SurfaceView implements SurfaceHolder.Callba
             backgroundSizeAtFling.x - viewSizeAtFling.x,
             0,
             backgroundSizeAtFling.y - viewSizeAtFling.y);
+        renderer.onFling(viewCenterAtFling.x, viewCenterAtFling.y, scroller.getFinalX(), scroller.getFinalY());
+        renderer.suspend();
         if (touchThread != null)
           touchThread.interrupt();
       }
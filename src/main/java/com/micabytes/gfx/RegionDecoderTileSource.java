@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
+
+import com.micabytes.util.GameLog;
+
+import java.io.IOException;
+
+/**
+ * RegionDecoderTileSource decodes the tiles of an image pyramid from a compressed image (PNG, JPEG)
+ * with BitmapRegionDecoder. Each decode worker opens its own decoder on the image the first time it
+ * needs one, so that the workers can decode disjoint regions concurrently.
+ * <p/>
+ * The image is either a file, which the decoders open by path, or the image data in memory. The
+ * latter is held on the heap for the lifetime of the source (see {@link #getHeapBytes()}).
+ * <p/>
+ * The size of the image is read from its header, unless it is known (e.g., from the disk cache).
+ */
+final class RegionDecoderTileSource implements TileSource {
+  // The raw (compressed) data of the image, or null if it is read from imagePath
+  @Nullable private final byte[] imageData;
+  @Nullable private final String imagePath;
+  // One decoder per decode worker
+  private final BitmapRegionDecoder[] decoders;
+  private final int width;
+  private final int height;
+  // Guarded by decoders
+  private boolean closed;
+
+  RegionDecoderTileSource(byte[] data, int workers) {
+    this(data, null, workers, -1, -1);
+  }
+
+  RegionDecoderTileSource(byte[] data, int workers, int w, int h) {
+    this(data, null, workers, w, h);
+  }
+
+  RegionDecoderTileSource(String path, int workers) {
+    this(null, path, workers, -1, -1);
+  }
+
+  RegionDecoderTileSource(String path, int workers, int w, int h) {
+    this(null, path, workers, w, h);
+  }
+
+  private RegionDecoderTileSource(@Nullable byte[] data, @Nullable String path, int workers, int w, int h) {
+    imageData = data;
+    imagePath = path;
+    decoders = new BitmapRegionDecoder[Math.max(1, workers)];
+    if ((w < 0) || (h < 0)) {
+      BitmapFactory.Options opt = new BitmapFactory.Options();
+      opt.inJustDecodeBounds = true;
+      decode(opt);
+      width = opt.outWidth;
+      height = opt.outHeight;
+    } else {
+      width = w;
+      height = h;
+    }
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public long getHeapBytes() {
+    return (imageData == null) ? 0L : imageData.length;
+  }
+
+  @Nullable
+  @Override
+  public Bitmap decodeLevel(int level, BitmapFactory.Options opt) {
+    opt.inSampleSize = 1 << level;
+    return decode(opt);
+  }
+
+  @Nullable
+  @Override
+  public Bitmap decodeTile(int worker, int level, int col, int row, Rect region, BitmapFactory.Options opt) {
+    BitmapRegionDecoder decoder = getDecoder(worker);
+    if (decoder == null) return null;
+    opt.inSampleSize = 1 << level;
+    return decoder.decodeRegion(region, opt);
+  }
+
+  @Override
+  public void close() {
+    synchronized (decoders) {
+      closed = true;
+      for (int i = 0; i < decoders.length; i++) {
+        if (decoders[i] != null) {
+          decoders[i].recycle();
+          decoders[i] = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the decoder of a decode worker, creating it if necessary. Decoders are shared (and
+   * serialized) if the pool has grown since the source was created. Returns null once the source
+   * has been closed.
+   */
+  @Nullable
+  private BitmapRegionDecoder getDecoder(int index) {
+    int i = index % decoders.length;
+    synchronized (decoders) {
+      if (closed) return null;
+      if (decoders[i] == null) {
+        try {
+          // The image data is never modified, so the decoders may share it rather than copy it
+          decoders[i] = (imageData == null)
+              ? BitmapRegionDecoder.newInstance(imagePath, false)
+              : BitmapRegionDecoder.newInstance(imageData, 0, imageData.length, true);
+        } catch (IOException e) {
+          GameLog.logException(e);
+        }
+      }
+      return decoders[i];
+    }
+  }
+
+  @Nullable
+  private Bitmap decode(BitmapFactory.Options opt) {
+    if (imageData == null) return BitmapFactory.decodeFile(imagePath, opt);
+    return BitmapFactory.decodeByteArray(imageData, 0, imageData.length, opt);
+  }
+
+}
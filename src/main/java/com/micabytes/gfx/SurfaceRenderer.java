@@ -18,7 +18,9 @@ import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.Rect;
-import android.graphics.RectF;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * SurfaceRenderer is the superclass of the renderer. The game should subclass the renderer and extend the drawing methods to add game drawing.
@@ -36,6 +38,11 @@ public abstract class SurfaceRenderer {
   protected final ViewPort viewPort = new ViewPort();
   // The Dimensions of the Game Area
   protected final Point backgroundSize = new Point();
+  // Requests a frame from the view (null if not attached to one)
+  @Nullable private volatile Runnable renderRequest;
+  // Frame timing
+  private final FrameStats frameStats = new FrameStats();
+  private volatile boolean frameStatsOverlay;
 
   /**
    * Constructor for the surface renderer
@@ -68,12 +75,99 @@ public abstract class SurfaceRenderer {
   public abstract void resume();
 
   /**
-   * Draw to the canvas
+   * Set by the MicaSurfaceView to receive render requests
+   */
+  void setRenderRequest(@Nullable Runnable request) {
+    renderRequest = request;
+  }
+
+  /**
+   * Request a frame. In {@link MicaSurfaceView#RENDERMODE_WHEN_DIRTY}, frames are only drawn when
+   * requested; moving or zooming the view, {@link #markDirty(Rect)} and {@link #invalidateView()}
+   * request one automatically.
+   */
+  public void requestRender() {
+    Runnable request = renderRequest;
+    if (request != null) request.run();
+  }
+
+  /**
+   * Called by the rendering thread before each frame, to determine the area of the surface that has
+   * to be redrawn. Renderers that track changes themselves (e.g., of a TileMap) pass them on to
+   * {@link #markDirty(Rect)} here.
+   *
+   * @param dirty Set to the area of the surface to redraw
+   * @return false if nothing has to be redrawn
+   */
+  public boolean prepareFrame(Rect dirty) {
+    return viewPort.prepareFrame(dirty);
+  }
+
+  /**
+   * Draw to the canvas: {@link #compose()}, then {@link #present(Canvas)}
    */
   public void draw(Canvas canvas) {
     viewPort.draw(canvas);
   }
 
+  /**
+   * Compose the next frame (drawBase, drawLayer and drawFinal) into the back buffer of the
+   * viewport, and make it the front buffer. Called by the rendering thread.
+   */
+  public void compose() {
+    viewPort.compose();
+  }
+
+  /**
+   * Draw the front buffer (the last composed frame) to the canvas. Only the front buffer is locked,
+   * so this does not wait for a frame being composed.
+   */
+  public void present(Canvas canvas) {
+    viewPort.present(canvas);
+  }
+
+  /**
+   * The timing of the frames drawn by this renderer
+   */
+  public FrameStats getFrameStats() {
+    return frameStats;
+  }
+
+  /**
+   * Show the frame statistics on top of the final layer. With partial updates, the overlay is only
+   * refreshed where a frame is posted.
+   */
+  public void setFrameStatsOverlay(boolean show) {
+    frameStatsOverlay = show;
+    requestRender();
+  }
+
+  /**
+   * Enable or disable partial updates. If enabled, a frame is only drawn if the view has moved or
+   * part of the scene has been marked as changed ({@link #markDirty(Rect)},
+   * {@link #invalidateView()}), and only the changed area of the surface is posted. The game layers
+   * are still drawn completely, so they must not change without being marked. Disabled by default.
+   */
+  public void setPartialUpdates(boolean enable) {
+    viewPort.setPartialUpdates(enable);
+  }
+
+  /**
+   * Mark an area of the scene (in scene pixels) as changed, so that it is redrawn in the next frame.
+   */
+  public void markDirty(Rect scene) {
+    viewPort.markDirty(scene);
+    requestRender();
+  }
+
+  /**
+   * Redraw the whole view in the next frame
+   */
+  public void invalidateView() {
+    viewPort.invalidate();
+    requestRender();
+  }
+
   /**
    * Draw the base (background) layer of the SurfaceView image
    */
@@ -133,6 +227,14 @@ public abstract class SurfaceRenderer {
   }
 
 
+  /**
+   * Called when a fling starts, with the predicted trajectory of the view position. Renderers can
+   * use it to prepare the area that the view is moving to.
+   */
+  public void onFling(int startX, int startY, int finalX, int finalY) {
+    // NOOP
+  }
+
   public void zoom(float scaleFactor, PointF screenFocus) {
     viewPort.zoom(scaleFactor, screenFocus);
   }
@@ -141,19 +243,71 @@ public abstract class SurfaceRenderer {
     return viewPort.getZoom();
   }
 
+  /**
+   * Enable or disable scroll-blitting of the base layer. If enabled, a frame that only pans the
+   * view (at the same zoom) shifts the base layer of the previous frame, and drawBase is called
+   * for each exposed strip (see {@link ViewPort#getBaseClip(Rect)}). Only enable it if drawBase
+   * limits its drawing to the base clip and draws the same content from frame to frame; a drawBase
+   * that ignores the clip would redraw the whole layer for every strip. Disabled by default.
+   */
+  public void setScrollBlit(boolean enable) {
+    viewPort.setScrollBlit(enable);
+  }
+
+  /**
+   * Returns the screen coordinate of a scene coordinate, at the given zoom factor. The base layer
+   * is drawn at toScreen(x) - toScreen(window origin) rather than at (x - window origin) / zoom, so
+   * that a pan moves everything by the same whole number of pixels and the previous frame can be
+   * reused.
+   */
+  @SuppressWarnings("NumericCastThatLosesPrecision")
+  public static int toScreen(int coordinate, float zoom) {
+    return (int) Math.floor(coordinate / zoom);
+  }
+
   /**
    * View Port. This handles the actual drawing, managing dimensions, etc.
    */
   @SuppressWarnings({"PublicInnerClass", "NonPrivateFieldAccessedInSynchronizedContext"})
   public class ViewPort {
-    // The Bitmap of the current ViewPort
+    // The Bitmap the current frame is composed in (the back buffer)
     protected Bitmap bitmap;
     protected final Object bitmapLock = new Object();
-    // TODO: Bitmap needs checking.
-    // The rect defining where the viewport is within the scene
-    private final Rect window = new Rect(0, 0, 0, 0);
-    // The zoom factor of the viewport
-    private float zoom = 1.0f;
+    // The last composed frame (the front buffer), which is drawn to the surface
+    private Bitmap frontBitmap;
+    private final Object frontLock = new Object();
+    // The size of the viewport in screen pixels; the buffers are resized by the rendering thread
+    private volatile int screenWidth;
+    private volatile int screenHeight;
+    private boolean resizePending;
+    // The window of the scene that is shown, and the zoom factor (written by compare-and-set)
+    private final AtomicReference<ViewState> state = new AtomicReference<>(ViewState.INITIAL);
+    // The base layer of the previous frame (shifted, rather than redrawn, when the view pans; only
+    // kept while scroll-blitting is enabled)
+    private Bitmap baseBitmap;
+    private final Canvas blitCanvas = new Canvas();
+    private boolean scrollBlit;
+    private boolean baseValid;
+    private boolean baseDrawn;
+    private boolean baseExtended;
+    // The thread running drawBase (null if the base layer is not being drawn)
+    private Thread baseThread;
+    // The zoom and screen origin of the base layer
+    private float baseZoom = 1.0f;
+    private final Point baseOrigin = new Point();
+    // The area of the base layer that drawBase has to redraw, in screen and in scene pixels
+    private final Rect baseClip = new Rect();
+    private final Rect baseWindow = new Rect();
+    // The strips exposed by a pan, and the changed area of the scene
+    private final Rect[] exposed = {new Rect(), new Rect(), new Rect()};
+    // Partial updates (see SurfaceRenderer.setPartialUpdates)
+    private boolean partialUpdates;
+    private boolean redrawAll = true;
+    // The generation of the view state of the last frame
+    private long frameGeneration = -1L;
+    // The area of the scene marked as changed since the last frame, and in the current frame
+    private final Rect dirtyScene = new Rect();
+    private final Rect frameDirty = new Rect();
 
     public Bitmap getBitmap() {
       synchronized (bitmapLock) {
@@ -161,166 +315,482 @@ public abstract class SurfaceRenderer {
       }
     }
 
-    public synchronized void getOrigin(Point p) {
-      p.set(window.left, window.top);
+    /**
+     * Returns the current state of the viewport. The state is immutable; to follow changes, get it
+     * again.
+     */
+    public ViewState getState() {
+      return state.get();
+    }
+
+    public void getOrigin(Point p) {
+      state.get().getOrigin(p);
     }
 
     public void setOrigin(int xp, int yp) {
-      int x = xp;
-      int y = yp;
-      int w;
-      int h;
-      synchronized (this) {
-        w = window.width();
-        h = window.height();
-      }
-      // check bounds
-      if (x < 0)
-        x = 0;
-      if (y < 0)
-        y = 0;
-      if ((x + w) > backgroundSize.x)
-        x = backgroundSize.x - w;
-      if ((y + h) > backgroundSize.y)
-        y = backgroundSize.y - h;
-      // Set the Window rect
-      synchronized (this) {
-        window.set(x, y, x + w, y + h);
-      }
+      ViewState current;
+      ViewState next;
+      do {
+        current = state.get();
+        int w = current.getWidth();
+        int h = current.getHeight();
+        int x = xp;
+        int y = yp;
+        // check bounds
+        if (x < 0)
+          x = 0;
+        if (y < 0)
+          y = 0;
+        if ((x + w) > backgroundSize.x)
+          x = backgroundSize.x - w;
+        if ((y + h) > backgroundSize.y)
+          y = backgroundSize.y - h;
+        next = current.next(x, y, w, h, current.getZoom());
+      } while (!state.compareAndSet(current, next));
+      requestRender();
     }
 
-    @SuppressWarnings("AssignmentToNull")
     public void setSize(int w, int h) {
-      int x;
-      int y;
-      synchronized (bitmapLock) {
-        if (bitmap != null) {
-          bitmap.recycle();
-          bitmap = null;
-        }
-        bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
-        x = window.left;
-        y = window.top;
-      }
-      // check bounds
-      if (x < 0)
-        x = 0;
-      if (y < 0)
-        y = 0;
-      if ((x + w) > backgroundSize.x)
-        x = backgroundSize.x - w;
-      if ((y + h) > backgroundSize.y)
-        y = backgroundSize.y - h;
-      // Set the Window rect
+      screenWidth = w;
+      screenHeight = h;
       synchronized (this) {
-        window.set(x, y, x + w, y + h);
+        resizePending = true;
+        redrawAll = true;
       }
+      ViewState current;
+      ViewState next;
+      do {
+        current = state.get();
+        int x = current.getLeft();
+        int y = current.getTop();
+        // check bounds
+        if (x < 0)
+          x = 0;
+        if (y < 0)
+          y = 0;
+        if ((x + w) > backgroundSize.x)
+          x = backgroundSize.x - w;
+        if ((y + h) > backgroundSize.y)
+          y = backgroundSize.y - h;
+        next = current.next(x, y, w, h, current.getZoom());
+      } while (!state.compareAndSet(current, next));
+      requestRender();
     }
 
-    public synchronized void getSize(Point p) {
-      p.x = window.width();
-      p.y = window.height();
+    public void getSize(Point p) {
+      state.get().getSize(p);
     }
 
     public void getPhysicalSize(Point p) {
-      if (bitmap == null) return;
-      p.x = getPhysicalWidth();
-      p.y = getPhysicalHeight();
+      if (screenWidth <= 0) return;
+      p.x = screenWidth;
+      p.y = screenHeight;
     }
 
     public int getPhysicalWidth() {
-      synchronized (bitmapLock) {
-        return bitmap.getWidth();
-      }
+      return screenWidth;
     }
 
     public int getPhysicalHeight() {
-      synchronized (bitmapLock) {
-        return bitmap.getHeight();
-      }
+      return screenHeight;
     }
 
-    public synchronized float getZoom() {
-      return zoom;
+    public float getZoom() {
+      return state.get().getZoom();
     }
 
     @SuppressWarnings("unused")
-    public synchronized void setZoom(float f) {
-      zoom = f;
+    public void setZoom(float f) {
+      ViewState current;
+      do {
+        current = state.get();
+      } while (!state.compareAndSet(current, current.next(current.getLeft(), current.getTop(), current.getWidth(), current.getHeight(), f)));
+      requestRender();
     }
 
+    @SuppressWarnings("NumericCastThatLosesPrecision")
     public void zoom(float factor, PointF screenFocus) {
-      PointF screenSize;
-      synchronized(bitmapLock) {
-        if (bitmap == null) return;
-        screenSize = new PointF(bitmap.getWidth(), bitmap.getHeight());
-      }
-      PointF sceneSize = new PointF(getBackgroundSize());
-      float screenWidthToHeight = screenSize.x / screenSize.y;
-      float screenHeightToWidth = screenSize.y / screenSize.x;
-      synchronized (this) {
-        float newZoom = zoom * factor;
-        RectF w1 = new RectF(window);
-        RectF w2 = new RectF();
-        PointF sceneFocus = new PointF(
-            w1.left + ((screenFocus.x / screenSize.x) * w1.width()),
-            w1.top + ((screenFocus.y / screenSize.y) * w1.height())
-        );
-        float w2Width = getPhysicalWidth() * newZoom;
-        if (w2Width > sceneSize.x) {
-          w2Width = sceneSize.x;
-          newZoom = w2Width / getPhysicalWidth();
+      if ((screenWidth <= 0) || (screenHeight <= 0)) return;
+      // Plain floats rather than PointF/RectF: this is called for every pinch event
+      float screenX = screenWidth;
+      float screenY = screenHeight;
+      float sceneX = backgroundSize.x;
+      float sceneY = backgroundSize.y;
+      float screenWidthToHeight = screenX / screenY;
+      float screenHeightToWidth = screenY / screenX;
+      float focusX = screenFocus.x / screenX;
+      float focusY = screenFocus.y / screenY;
+      ViewState current;
+      ViewState next;
+      do {
+        current = state.get();
+        float newZoom = current.getZoom() * factor;
+        float sceneFocusX = current.getLeft() + (focusX * current.getWidth());
+        float sceneFocusY = current.getTop() + (focusY * current.getHeight());
+        float w2Width = screenX * newZoom;
+        if (w2Width > sceneX) {
+          w2Width = sceneX;
+          newZoom = w2Width / screenX;
         }
         if (w2Width < MINIMUM_PIXELS_IN_VIEW) {
           w2Width = MINIMUM_PIXELS_IN_VIEW;
-          newZoom = w2Width / getPhysicalWidth();
+          newZoom = w2Width / screenX;
         }
         float w2Height = w2Width * screenHeightToWidth;
-        if (w2Height > sceneSize.y) {
-          w2Height = sceneSize.y;
+        if (w2Height > sceneY) {
+          w2Height = sceneY;
           w2Width = w2Height * screenWidthToHeight;
-          newZoom = w2Width / getPhysicalWidth();
+          newZoom = w2Width / screenX;
         }
         if (w2Height < MINIMUM_PIXELS_IN_VIEW) {
           w2Height = MINIMUM_PIXELS_IN_VIEW;
           w2Width = w2Height * screenWidthToHeight;
-          newZoom = w2Width / getPhysicalWidth();
+          newZoom = w2Width / screenX;
         }
-        w2.left = sceneFocus.x - ((screenFocus.x / screenSize.x) * w2Width);
-        w2.top = sceneFocus.y - ((screenFocus.y / screenSize.y) * w2Height);
-        if (w2.left < 0)
-          w2.left = 0;
-        if (w2.top < 0)
-          w2.top = 0;
-        w2.right = w2.left + w2Width;
-        w2.bottom = w2.top + w2Height;
-        if (w2.right > sceneSize.x) {
-          w2.right = sceneSize.x;
-          w2.left = w2.right - w2Width;
+        float w2Left = sceneFocusX - (focusX * w2Width);
+        float w2Top = sceneFocusY - (focusY * w2Height);
+        if (w2Left < 0)
+          w2Left = 0;
+        if (w2Top < 0)
+          w2Top = 0;
+        float w2Right = w2Left + w2Width;
+        float w2Bottom = w2Top + w2Height;
+        if (w2Right > sceneX) {
+          w2Right = sceneX;
+          w2Left = w2Right - w2Width;
         }
-        if (w2.bottom > sceneSize.y) {
-          w2.bottom = sceneSize.y;
-          w2.top = w2.bottom - w2Height;
+        if (w2Bottom > sceneY) {
+          w2Bottom = sceneY;
+          w2Top = w2Bottom - w2Height;
         }
-        //noinspection NumericCastThatLosesPrecision
-        window.set((int) w2.left, (int) w2.top, (int) w2.right, (int) w2.bottom);
-        zoom = newZoom;
-      }
+        int left = (int) w2Left;
+        int top = (int) w2Top;
+        next = current.next(left, top, (int) w2Right - left, (int) w2Bottom - top, newZoom);
+      } while (!state.compareAndSet(current, next));
+      requestRender();
     }
 
     void draw(Canvas canvas) {
-      drawBase();
+      compose();
+      present(canvas);
+    }
+
+    void compose() {
+      long start = System.nanoTime();
+      applyResize();
+      updateBase();
+      long base = System.nanoTime();
       drawLayer();
+      long layer = System.nanoTime();
       drawFinal();
+      long end = System.nanoTime();
+      frameStats.record(FrameStats.BASE, base - start);
+      frameStats.record(FrameStats.LAYER, layer - base);
+      frameStats.record(FrameStats.FINAL, end - layer);
+      if (frameStatsOverlay) drawFrameStats();
+      swapBuffers();
+    }
+
+    void present(Canvas canvas) {
+      long start = System.nanoTime();
+      synchronized (frontLock) {
+        if ((canvas != null) && (frontBitmap != null)) {
+          canvas.drawBitmap(frontBitmap, 0.0F, 0.0F, null);
+        }
+      }
+      frameStats.record(FrameStats.PRESENT, System.nanoTime() - start);
+    }
+
+    private void drawFrameStats() {
+      synchronized (bitmapLock) {
+        if (bitmap == null) return;
+        blitCanvas.setBitmap(bitmap);
+        frameStats.draw(blitCanvas);
+      }
+    }
+
+    /**
+     * Reallocate the buffers after {@link #setSize(int, int)}. Done by the rendering thread at the
+     * start of a frame, so that the buffers are never recycled while a frame is drawn in them.
+     */
+    @SuppressWarnings("AssignmentToNull")
+    private void applyResize() {
+      synchronized (this) {
+        if (!resizePending) return;
+        resizePending = false;
+      }
+      int w = screenWidth;
+      int h = screenHeight;
+      synchronized (bitmapLock) {
+        if (bitmap != null) {
+          bitmap.recycle();
+          bitmap = null;
+        }
+        if ((w > 0) && (h > 0)) bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+        synchronized (this) {
+          if (baseBitmap != null) {
+            baseBitmap.recycle();
+            baseBitmap = null;
+          }
+        }
+      }
+      synchronized (frontLock) {
+        if (frontBitmap != null) {
+          frontBitmap.recycle();
+          frontBitmap = null;
+        }
+      }
+    }
+
+    /**
+     * Make the composed frame the front buffer. The old front buffer becomes the back buffer; its
+     * content does not matter, as the next frame redraws (or blits) the whole base layer.
+     */
+    private void swapBuffers() {
+      synchronized (bitmapLock) {
+        if (bitmap == null) return;
+        synchronized (frontLock) {
+          Bitmap back = frontBitmap;
+          if ((back == null) || (back.getWidth() != bitmap.getWidth()) || (back.getHeight() != bitmap.getHeight())) {
+            if (back != null) back.recycle();
+            back = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+          }
+          frontBitmap = bitmap;
+          bitmap = back;
+        }
+      }
+    }
+
+    /**
+     * Get the window of the scene that is shown
+     */
+    public void getWindow(Rect out) {
+      state.get().getWindow(out);
+    }
+
+    /**
+     * @deprecated Returns a copy of the window; use {@link #getWindow(Rect)} or
+     * {@link #getState()} instead.
+     */
+    @Deprecated
+    public Rect getWindow() {
+      Rect ret = new Rect();
+      state.get().getWindow(ret);
+      return ret;
+    }
+
+    synchronized void setScrollBlit(boolean enable) {
+      scrollBlit = enable;
+      baseValid = false;
+      if (!enable && (baseBitmap != null)) {
+        baseBitmap.recycle();
+        baseBitmap = null;
+      }
+    }
+
+    synchronized void setPartialUpdates(boolean enable) {
+      partialUpdates = enable;
+      redrawAll = true;
+    }
+
+    /**
+     * Mark an area of the scene as changed. Its part of the base layer is redrawn (drawBase is called
+     * with it as the base clip), and with partial updates, it is posted to the surface.
+     */
+    public synchronized void markDirty(Rect scene) {
+      if (baseThread == Thread.currentThread()) {
+        // Called from drawBase; redraw the base layer now, and post the area with the next frame
+        invalidateBase();
+      }
+      dirtyScene.union(scene);
+    }
+
+    /**
+     * Redraw the whole view (including the base layer) in the next frame
+     */
+    public synchronized void invalidate() {
+      baseValid = false;
+      redrawAll = true;
+    }
+
+    /**
+     * Determine the area of the surface to redraw in the next frame; see
+     * {@link SurfaceRenderer#prepareFrame(Rect)}
+     */
+    boolean prepareFrame(Rect out) {
+      applyResize();
+      int w;
+      int h;
+      synchronized (bitmapLock) {
+        if (bitmap == null) return false;
+        w = bitmap.getWidth();
+        h = bitmap.getHeight();
+      }
+      ViewState view = state.get();
+      synchronized (this) {
+        frameDirty.set(dirtyScene);
+        dirtyScene.setEmpty();
+        boolean moved = view.getGeneration() != frameGeneration;
+        frameGeneration = view.getGeneration();
+        if (!partialUpdates || moved || redrawAll || !baseValid) {
+          redrawAll = false;
+          out.set(0, 0, w, h);
+          return true;
+        }
+        if (frameDirty.isEmpty()) return false;
+        float z = view.getZoom();
+        sceneToScreen(frameDirty, z, toScreen(view.getLeft(), z), toScreen(view.getTop(), z), out);
+        return out.intersect(0, 0, w, h);
+      }
+    }
+
+    /**
+     * Convert an area of the scene to the (slightly larger) area of the viewport bitmap it is drawn in
+     */
+    private void sceneToScreen(Rect scene, float z, int originX, int originY, Rect out) {
+      out.set(
+          toScreen(scene.left, z) - originX,
+          toScreen(scene.top, z) - originY,
+          (toScreen(scene.right, z) - originX) + 1,
+          (toScreen(scene.bottom, z) - originY) + 1);
+    }
+
+    /**
+     * Update the base layer of the viewport bitmap. If the view has only been panned since the last
+     * frame, the base layer of that frame is shifted and drawBase redraws the exposed strips;
+     * otherwise the whole base layer is redrawn.
+     */
+    @SuppressWarnings("MethodWithMultipleLoops")
+    private void updateBase() {
+      ViewState view = state.get();
+      float z = view.getZoom();
+      int x = toScreen(view.getLeft(), z);
+      int y = toScreen(view.getTop(), z);
+      int n = 0;
+      boolean blit;
+      synchronized (bitmapLock) {
+        if (bitmap == null) {
+          drawBase();
+          return;
+        }
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        synchronized (this) {
+          int dx = x - baseOrigin.x;
+          int dy = y - baseOrigin.y;
+          blit = scrollBlit && baseValid && (baseBitmap != null) && (z == baseZoom)
+              && (Math.abs(dx) < w) && (Math.abs(dy) < h);
+          if (blit) {
+            // Shift the previous base layer; the strips it does not cover have to be redrawn
+            blitCanvas.setBitmap(bitmap);
+            blitCanvas.drawBitmap(baseBitmap, -dx, -dy, null);
+            if (dx > 0) exposed[n++].set(w - dx, 0, w, h);
+            if (dx < 0) exposed[n++].set(0, 0, -dx, h);
+            int left = Math.max(0, -dx);
+            int right = Math.min(w, w - dx);
+            if (dy > 0) exposed[n++].set(left, h - dy, right, h);
+            if (dy < 0) exposed[n++].set(left, 0, right, -dy);
+            // The changed area of the scene
+            if (!frameDirty.isEmpty()) {
+              sceneToScreen(frameDirty, z, x, y, exposed[n]);
+              if (exposed[n].intersect(0, 0, w, h)) n++;
+            }
+          } else {
+            exposed[n++].set(0, 0, w, h);
+          }
+          frameDirty.setEmpty();
+          baseValid = true;
+          baseZoom = z;
+          baseOrigin.set(x, y);
+          baseThread = Thread.currentThread();
+          baseDrawn = false;
+          baseExtended = false;
+        }
+      }
+      // drawBase is called even if nothing is exposed, so that it can call invalidateBase
+      if (n == 0) {
+        setBaseClip(0, 0, 0, 0);
+        drawBase();
+      }
+      for (int i = 0; i < n; i++) {
+        Rect r = exposed[i];
+        setBaseClip(r.left, r.top, r.right, r.bottom);
+        drawBase();
+        synchronized (this) {
+          if (baseExtended) break;
+        }
+      }
       synchronized (bitmapLock) {
-        if ((canvas != null) && (bitmap != null)) {
-          canvas.drawBitmap(bitmap, 0.0F, 0.0F, null);
+        synchronized (this) {
+          baseThread = null;
+          if (!baseDrawn || !scrollBlit || (bitmap == null)) return;
+          // Keep the base layer for the next frame, before the game layers are drawn on top of it
+          if ((baseBitmap == null) || (baseBitmap.getWidth() != bitmap.getWidth())
+              || (baseBitmap.getHeight() != bitmap.getHeight())) {
+            if (baseBitmap != null) baseBitmap.recycle();
+            baseBitmap = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+          }
+          blitCanvas.setBitmap(baseBitmap);
+          blitCanvas.drawBitmap(bitmap, 0.0F, 0.0F, null);
         }
       }
     }
 
-    public synchronized Rect getWindow() {
-      return window;
+    @SuppressWarnings("NumericCastThatLosesPrecision")
+    private synchronized void setBaseClip(int left, int top, int right, int bottom) {
+      baseClip.set(left, top, right, bottom);
+      baseWindow.set(
+          (int) Math.floor((baseOrigin.x + left) * baseZoom),
+          (int) Math.floor((baseOrigin.y + top) * baseZoom),
+          (int) Math.ceil((baseOrigin.x + right) * baseZoom),
+          (int) Math.ceil((baseOrigin.y + bottom) * baseZoom));
+      if (!baseClip.isEmpty()) baseDrawn = true;
+    }
+
+    /**
+     * The area of the viewport bitmap that drawBase has to redraw. Drawing outside of it is harmless
+     * (as long as the base layer is drawn with the mapping of {@link #getBaseOrigin(Point)}), but
+     * wasted. The area is empty if there is nothing to redraw.
+     */
+    public synchronized void getBaseClip(Rect out) {
+      out.set(baseClip);
+    }
+
+    /**
+     * The area of the scene covered by {@link #getBaseClip(Rect)}
+     */
+    public synchronized void getBaseWindow(Rect out) {
+      out.set(baseWindow);
+    }
+
+    /**
+     * The origin of the base layer in screen pixels. A point x, y of the scene is drawn at
+     * toScreen(x, zoom) - origin.x, toScreen(y, zoom) - origin.y; see
+     * {@link SurfaceRenderer#toScreen(int, float)}.
+     */
+    public synchronized void getBaseOrigin(Point out) {
+      out.set(baseOrigin.x, baseOrigin.y);
+    }
+
+    /**
+     * The zoom factor of the base layer being drawn
+     */
+    public synchronized float getBaseZoom() {
+      return baseZoom;
+    }
+
+    /**
+     * Mark the base layer as changed, so that it is redrawn completely. If called from drawBase, the
+     * base clip is extended to the whole viewport for the current frame; otherwise the next frame
+     * is redrawn.
+     */
+    public synchronized void invalidateBase() {
+      if ((baseThread == Thread.currentThread()) && (bitmap != null)) {
+        setBaseClip(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        baseExtended = true;
+      } else {
+        baseValid = false;
+      }
     }
 
   }
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * TextureAtlas packs many small images (e.g., the tiles of a TileMap) into a few large sheets.
+ * Every image becomes a region of a sheet; regions are looked up by the resource id of the image
+ * and described by flat int arrays, so that drawing a tile needs no Bitmap of its own.
+ * <p/>
+ * Images are packed on shelves: sorted by height, and placed from left to right in rows that are
+ * as high as their first image. Each image is surrounded by a pixel of padding that repeats its
+ * edge, so that bitmap filtering does not bleed in the neighbouring images.
+ * <p/>
+ * Atlases are created with {@link ImageHandler#createAtlas(int[], Bitmap.Config)}.
+ */
+@SuppressWarnings("unused")
+public final class TextureAtlas {
+  public static final int NOT_FOUND = -1;
+  public static final int DEFAULT_SHEET_SIZE = 2048;
+  private static final int PADDING = 1;
+  // The resource ids of the images (sorted); region i holds the image keys[i]
+  private final int[] keys;
+  // The sheet of each region
+  private final int[] sheetOf;
+  // The bounds of each region (left, top, right, bottom)
+  private final int[] bounds;
+  private final Bitmap[] sheets;
+  // The mipmaps of each region (index = level; 0 is unused), created on demand
+  private final Bitmap[][] mipmaps;
+  // Used while filling the sheets
+  private final Canvas canvas = new Canvas();
+  private final Rect srcRect = new Rect();
+  private final Rect dstRect = new Rect();
+  private final Rect regionRect = new Rect();
+
+  /**
+   * Packs the images and allocates the (empty) sheets; the images are then drawn with
+   * {@link #put(int, Bitmap)}.
+   *
+   * @param ids       The resource ids of the images, sorted and without duplicates
+   * @param widths    The widths of the images
+   * @param heights   The heights of the images
+   * @param sheetSize The maximum width and height of a sheet (larger images get a sheet of their own)
+   */
+  TextureAtlas(int[] ids, int[] widths, int[] heights, int sheetSize, Bitmap.Config config) {
+    keys = ids.clone();
+    int n = keys.length;
+    sheetOf = new int[n];
+    mipmaps = new Bitmap[n][];
+    bounds = new int[n << 2];
+    int[] sheetWidth = new int[n];
+    int[] sheetHeight = new int[n];
+    int count = pack(widths, heights, sheetSize, sheetOf, bounds, sheetWidth, sheetHeight);
+    sheets = new Bitmap[count];
+    for (int s = 0; s < count; s++) {
+      sheets[s] = Bitmap.createBitmap(Math.max(1, sheetWidth[s]), Math.max(1, sheetHeight[s]), config);
+    }
+  }
+
+  /**
+   * Shelf packing. Fills in the sheet and the bounds of each image, and the size of each sheet.
+   *
+   * @return The number of sheets
+   */
+  @SuppressWarnings({"MethodWithMultipleLoops", "MethodWithTooManyParameters"})
+  static int pack(final int[] widths, final int[] heights, int sheetSize, int[] sheetOf, int[] bounds, int[] sheetWidth, int[] sheetHeight) {
+    Integer[] order = new Integer[widths.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return heights[b] - heights[a];
+      }
+    });
+    int count = 0;
+    int sheet = NOT_FOUND;
+    int shelfX = 0;
+    int shelfY = 0;
+    int shelfHeight = 0;
+    for (Integer index : order) {
+      int i = index;
+      int w = widths[i] + (PADDING << 1);
+      int h = heights[i] + (PADDING << 1);
+      int x;
+      int y;
+      if ((w > sheetSize) || (h > sheetSize)) {
+        // Too large to share a sheet
+        int own = count++;
+        sheetOf[i] = own;
+        sheetWidth[own] = w;
+        sheetHeight[own] = h;
+        x = 0;
+        y = 0;
+      } else {
+        if ((sheet != NOT_FOUND) && ((shelfX + w) > sheetSize)) {
+          // Start a new shelf
+          shelfY += shelfHeight;
+          shelfX = 0;
+          shelfHeight = 0;
+        }
+        if ((sheet == NOT_FOUND) || ((shelfY + h) > sheetSize)) {
+          // Start a new sheet
+          sheet = count++;
+          shelfX = 0;
+          shelfY = 0;
+          shelfHeight = 0;
+        }
+        sheetOf[i] = sheet;
+        x = shelfX;
+        y = shelfY;
+        shelfX += w;
+        shelfHeight = Math.max(shelfHeight, h);
+        sheetWidth[sheet] = Math.max(sheetWidth[sheet], shelfX);
+        sheetHeight[sheet] = Math.max(sheetHeight[sheet], shelfY + shelfHeight);
+      }
+      int b = i << 2;
+      bounds[b] = x + PADDING;
+      bounds[b + 1] = y + PADDING;
+      bounds[b + 2] = (x + w) - PADDING;
+      bounds[b + 3] = (y + h) - PADDING;
+    }
+    return count;
+  }
+
+  /**
+   * Draw an image into its region, and repeat its edges into the padding around it. The image is
+   * scaled if its size differs from the size it was packed with.
+   */
+  void put(int region, Bitmap bmp) {
+    int b = region << 2;
+    int left = bounds[b];
+    int top = bounds[b + 1];
+    int right = bounds[b + 2];
+    int bottom = bounds[b + 3];
+    int w = bmp.getWidth();
+    int h = bmp.getHeight();
+    canvas.setBitmap(sheets[sheetOf[region]]);
+    dstRect.set(left, top, right, bottom);
+    canvas.drawBitmap(bmp, null, dstRect, null);
+    srcRect.set(0, 0, 1, h);
+    dstRect.set(left - PADDING, top, left, bottom);
+    canvas.drawBitmap(bmp, srcRect, dstRect, null);
+    srcRect.set(w - 1, 0, w, h);
+    dstRect.set(right, top, right + PADDING, bottom);
+    canvas.drawBitmap(bmp, srcRect, dstRect, null);
+    srcRect.set(0, 0, w, 1);
+    dstRect.set(left, top - PADDING, right, top);
+    canvas.drawBitmap(bmp, srcRect, dstRect, null);
+    srcRect.set(0, h - 1, w, h);
+    dstRect.set(left, bottom, right, bottom + PADDING);
+    canvas.drawBitmap(bmp, srcRect, dstRect, null);
+    canvas.setBitmap(null);
+  }
+
+  /**
+   * Returns the region of an image, or {@link #NOT_FOUND} if it is not in the atlas
+   */
+  public int indexOf(int key) {
+    int i = Arrays.binarySearch(keys, key);
+    return (i < 0) ? NOT_FOUND : i;
+  }
+
+  public int getRegionCount() {
+    return keys.length;
+  }
+
+  public int getSheetCount() {
+    return sheets.length;
+  }
+
+  /**
+   * Returns the sheet holding a region
+   */
+  public Bitmap getSheet(int region) {
+    return sheets[sheetOf[region]];
+  }
+
+  /**
+   * Get the bounds of a region within its sheet
+   */
+  public void getRect(int region, Rect out) {
+    int b = region << 2;
+    out.set(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3]);
+  }
+
+  public int getWidth(int region) {
+    int b = region << 2;
+    return bounds[b + 2] - bounds[b];
+  }
+
+  public int getHeight(int region) {
+    int b = region << 2;
+    return bounds[b + 3] - bounds[b + 1];
+  }
+
+  /**
+   * Returns the image of a region scaled down by 1 << level (see
+   * {@link ImageHandler#getMipmap(int, int)})
+   */
+  public synchronized Bitmap getMipmap(int region, int level) {
+    Bitmap[] levels = mipmaps[region];
+    if (levels == null) {
+      levels = new Bitmap[ImageHandler.MAX_MIPMAP_LEVEL + 1];
+      mipmaps[region] = levels;
+    }
+    for (int l = 1; l <= level; l++) {
+      if (levels[l] != null) continue;
+      if (l == 1) {
+        getRect(region, regionRect);
+        levels[l] = ImageHandler.halve(getSheet(region), regionRect);
+      } else {
+        levels[l] = ImageHandler.halve(levels[l - 1], null);
+      }
+    }
+    return levels[level];
+  }
+
+  /**
+   * Drop the mipmaps of the regions
+   */
+  public synchronized void clearMipmaps() {
+    Arrays.fill(mipmaps, null);
+  }
+
+  /**
+   * The memory used by the sheets, in bytes
+   */
+  public long getByteCount() {
+    long bytes = 0L;
+    for (Bitmap sheet : sheets) {
+      bytes += (long) sheet.getRowBytes() * sheet.getHeight();
+    }
+    return bytes;
+  }
+
+  /**
+   * Release the sheets. The atlas must not be used afterwards.
+   */
+  public void recycle() {
+    for (Bitmap sheet : sheets) {
+      sheet.recycle();
+    }
+  }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
+
+import org.jetbrains.annotations.NonNls;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * TileContainer reads a pre-tiled image pyramid, as written by the MapTiler tool (tools/). The
+ * tiles are stored as individually compressed (PNG or JPEG) blocks, so a tile is decoded without
+ * touching the rest of the image. The file is memory-mapped; all values are big-endian.
+ * <pre>
+ * int   magic ("MTP1")
+ * int   width, height      size of the image at full resolution
+ * int   tileSize           size of the (square) tiles in pixels
+ * int   levels             number of pyramid levels; level l is scaled by 1 / (1 << l)
+ * int[] columns, rows      for each level
+ * index                    for each level, row and column: long offset, int length of the block
+ * blocks                   the compressed tiles
+ * </pre>
+ */
+final class TileContainer implements TileSource {
+  static final int MAGIC = 0x4d545031; // "MTP1"
+  private static final int INDEX_ENTRY_SIZE = 12;
+  @NonNls private static final String READ_MODE = "r";
+  // The mapped file (null once closed)
+  @Nullable private volatile ByteBuffer buffer;
+  private final int width;
+  private final int height;
+  private final int tileSize;
+  private final int[] columns;
+  private final int[] rows;
+  // Position of the index entry of the first tile of each level
+  private final int[] indexOffset;
+
+  TileContainer(File file) throws IOException {
+    ByteBuffer mapped;
+    RandomAccessFile raf = new RandomAccessFile(file, READ_MODE);
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) throw new IOException("Tile container too large to map: " + file);
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+    } finally {
+      raf.close();
+    }
+    buffer = mapped;
+    if (mapped.getInt() != MAGIC) throw new IOException("Not a tile container: " + file);
+    width = mapped.getInt();
+    height = mapped.getInt();
+    tileSize = mapped.getInt();
+    int levels = mapped.getInt();
+    columns = new int[levels];
+    rows = new int[levels];
+    indexOffset = new int[levels];
+    for (int level = 0; level < levels; level++) {
+      columns[level] = mapped.getInt();
+      rows[level] = mapped.getInt();
+    }
+    int pos = mapped.position();
+    for (int level = 0; level < levels; level++) {
+      indexOffset[level] = pos;
+      pos += columns[level] * rows[level] * INDEX_ENTRY_SIZE;
+    }
+    if (pos > mapped.capacity()) throw new IOException("Truncated tile container: " + file);
+  }
+
+  int getTileSize() {
+    return tileSize;
+  }
+
+  int getLevels() {
+    return columns.length;
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public long getHeapBytes() {
+    // The tiles are read from the mapped file, outside the heap
+    return 0L;
+  }
+
+  /**
+   * Stitches the tiles of a level together
+   */
+  @Nullable
+  @Override
+  public Bitmap decodeLevel(int level, BitmapFactory.Options opt) {
+    if (level >= columns.length) return null;
+    int w = ((width + (1 << level)) - 1) >> level;
+    int h = ((height + (1 << level)) - 1) >> level;
+    Bitmap bmp = Bitmap.createBitmap(w, h, opt.inPreferredConfig);
+    Canvas canvas = new Canvas(bmp);
+    Rect region = new Rect();
+    for (int row = 0; row < rows[level]; row++) {
+      for (int col = 0; col < columns[level]; col++) {
+        Bitmap tile = decodeTile(0, level, col, row, region, opt);
+        if (tile != null) {
+          canvas.drawBitmap(tile, col * tileSize, row * tileSize, null);
+          tile.recycle();
+        }
+      }
+    }
+    return bmp;
+  }
+
+  @Nullable
+  @Override
+  public Bitmap decodeTile(int worker, int level, int col, int row, Rect region, BitmapFactory.Options opt) {
+    byte[] data = readBlock(level, col, row);
+    if (data == null) return null;
+    opt.inSampleSize = 1;
+    return BitmapFactory.decodeByteArray(data, 0, data.length, opt);
+  }
+
+  /**
+   * Drops the mapping of the file. There is no API to unmap a file; the mapping is released when
+   * the buffer is garbage collected.
+   */
+  @Override
+  public void close() {
+    buffer = null;
+  }
+
+  /**
+   * Returns the compressed data of a tile, or null if the tile is not in the container (or the
+   * container has been closed)
+   */
+  @Nullable
+  private byte[] readBlock(int level, int col, int row) {
+    if ((level >= columns.length) || (col >= columns[level]) || (row >= rows[level])) return null;
+    ByteBuffer mapped = buffer;
+    if (mapped == null) return null;
+    // Read through a duplicate, so that the workers do not share a position
+    ByteBuffer in = mapped.duplicate();
+    in.position(indexOffset[level] + (((row * columns[level]) + col) * INDEX_ENTRY_SIZE));
+    long offset = in.getLong();
+    int length = in.getInt();
+    if ((length <= 0) || ((offset + length) > in.capacity())) return null;
+    byte[] data = new byte[length];
+    in.position((int) offset);
+    in.get(data);
+    return data;
+  }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+/**
+ * TileDecodeQueue hands out tile ids to the decode workers of {@link BitmapSurfaceRenderer}. A
+ * tile is only ever queued or decoded by one worker at a time, so that the workers always decode
+ * disjoint regions of the background.
+ * <p/>
+ * The queue is a binary heap ordered by priority (lowest first; e.g., the distance from the
+ * center of the viewport). Every tile carries the generation of the queue it was added in; when
+ * the viewport moves on, the generation is advanced, and tiles of older generations are dropped
+ * before they are decoded, unless they are added again.
+ */
+final class TileDecodeQueue {
+  private static final int NONE = -1;
+  // Binary min-heap of tile ids
+  private int[] heap = new int[0];
+  private int size;
+  // Per tile: the position in the heap (NONE if not queued), priority and generation
+  private int[] position = new int[0];
+  private int[] priority = new int[0];
+  private int[] tileGeneration = new int[0];
+  // Tiles that are being decoded
+  private boolean[] decoding = new boolean[0];
+  private int inProgress;
+  // The current generation, and the number of queued tiles of the current generation
+  private int generation;
+  private int current;
+
+  /**
+   * Clear the queue and resize it to hold the tile ids [0, capacity)
+   */
+  synchronized void reset(int capacity) {
+    heap = new int[capacity];
+    position = new int[capacity];
+    priority = new int[capacity];
+    tileGeneration = new int[capacity];
+    decoding = new boolean[capacity];
+    for (int i = 0; i < capacity; i++) {
+      position[i] = NONE;
+    }
+    size = 0;
+    inProgress = 0;
+    current = 0;
+    generation++;
+    notifyAll();
+  }
+
+  /**
+   * Start a new generation. All tiles queued so far become stale, and are dropped when they reach
+   * the head of the queue (unless they are added again).
+   *
+   * @return The new generation
+   */
+  synchronized int nextGeneration() {
+    generation++;
+    current = 0;
+    notifyAll();
+    return generation;
+  }
+
+  /**
+   * Add a tile to the current generation of the queue. Tiles that are being decoded are ignored;
+   * tiles that are already queued are moved to the current generation and given the new priority.
+   *
+   * @param id   The tile
+   * @param prio The priority of the tile; lower values are decoded first
+   */
+  synchronized void add(int id, int prio) {
+    if ((id < 0) || (id >= position.length) || decoding[id]) return;
+    if (position[id] == NONE) {
+      position[id] = size;
+      heap[size] = id;
+      size++;
+      current++;
+    } else if (tileGeneration[id] != generation) {
+      current++;
+    }
+    tileGeneration[id] = generation;
+    priority[id] = prio;
+    siftUp(position[id]);
+    siftDown(position[id]);
+    notifyAll();
+  }
+
+  /**
+   * Remove all queued tiles. Tiles already being decoded are unaffected.
+   */
+  synchronized void clear() {
+    nextGeneration();
+  }
+
+  /**
+   * Wait for the next tile to decode. Stale tiles are dropped.
+   *
+   * @return The id of the tile
+   */
+  synchronized int take() throws InterruptedException {
+    while (true) {
+      while (size == 0) {
+        wait();
+      }
+      int id = heap[0];
+      removeHead();
+      if (tileGeneration[id] == generation) {
+        current--;
+        decoding[id] = true;
+        inProgress++;
+        return id;
+      }
+    }
+  }
+
+  /**
+   * Mark a tile returned by {@link #take()} as finished.
+   */
+  synchronized void done(int id) {
+    if ((id >= 0) && (id < decoding.length) && decoding[id]) {
+      decoding[id] = false;
+      inProgress--;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Returns true if there are no tiles of the current generation queued, and no tiles being
+   * decoded.
+   */
+  synchronized boolean isIdle() {
+    return (current == 0) && (inProgress == 0);
+  }
+
+  /**
+   * Wait until the queue is idle.
+   */
+  synchronized void awaitIdle() throws InterruptedException {
+    while ((current != 0) || (inProgress != 0)) {
+      wait();
+    }
+  }
+
+  private void removeHead() {
+    position[heap[0]] = NONE;
+    size--;
+    if (size > 0) {
+      heap[0] = heap[size];
+      position[heap[0]] = 0;
+      siftDown(0);
+    }
+  }
+
+  private void siftUp(int pos) {
+    int i = pos;
+    int id = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >> 1;
+      if (priority[heap[parent]] <= priority[id]) break;
+      heap[i] = heap[parent];
+      position[heap[i]] = i;
+      i = parent;
+    }
+    heap[i] = id;
+    position[id] = i;
+  }
+
+  private void siftDown(int pos) {
+    int i = pos;
+    int id = heap[i];
+    while (true) {
+      int child = (i << 1) + 1;
+      if (child >= size) break;
+      if (((child + 1) < size) && (priority[heap[child + 1]] < priority[heap[child]])) child++;
+      if (priority[id] <= priority[heap[child]]) break;
+      heap[i] = heap[child];
+      position[heap[i]] = i;
+      i = child;
+    }
+    heap[i] = id;
+    position[id] = i;
+  }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.support.annotation.Nullable;
+
+import com.micabytes.util.GameLog;
+
+import org.jetbrains.annotations.NonNls;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * TileDiskCache is a persistent cache of decoded background tiles. Tiles are stored as raw pixel
+ * data (in the format of their Bitmap.Config) in one file per tile, and are read back through
+ * memory-mapped I/O, so that repeat loads of a background do not need to run the image decoder.
+ * <p/>
+ * Each source image has its own directory, named by the source key. The directory also holds an
+ * info file with the dimensions of the image, and the preview (top level) bitmap of the pyramid.
+ */
+final class TileDiskCache {
+  private static final String TAG = TileDiskCache.class.getName();
+  private static final int MAGIC = 0x4d544331; // "MTC1"
+  private static final int HEADER_SIZE = 16;
+  private static final int INFO_SIZE = 20;
+  @NonNls private static final String INFO_FILE = "info";
+  @NonNls private static final String PREVIEW_FILE = "preview";
+  @NonNls private static final String TILE_SUFFIX = ".tile";
+  @NonNls private static final String TEMP_SUFFIX = ".tmp";
+  @NonNls private static final String READ_MODE = "r";
+  // The directory of the source image
+  private final File directory;
+  private final int tileSize;
+  private final Bitmap.Config config;
+
+  /**
+   * @param root The root directory of the disk cache
+   * @param key  The identity of the source image
+   */
+  TileDiskCache(File root, String key, int tileSize, Bitmap.Config config) {
+    directory = new File(root, sanitize(key));
+    this.tileSize = tileSize;
+    this.config = config;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      GameLog.w(TAG, "Unable to create tile cache directory " + directory);
+    }
+    // Touch the directory, so that trim() evicts the least recently used sources first
+    //noinspection ResultOfMethodCallIgnored
+    directory.setLastModified(System.currentTimeMillis());
+  }
+
+  /**
+   * Reads the dimensions of the source image. Returns false if they are not cached, or if the
+   * cache was written with a different tile size or bitmap config (in which case it is cleared).
+   */
+  boolean readInfo(Point size) {
+    File file = new File(directory, INFO_FILE);
+    if (!file.exists()) return false;
+    try {
+      ByteBuffer buffer = map(file);
+      if ((buffer.capacity() >= INFO_SIZE) && (buffer.getInt() == MAGIC)) {
+        int w = buffer.getInt();
+        int h = buffer.getInt();
+        if ((buffer.getInt() == tileSize) && (buffer.getInt() == config.ordinal())) {
+          size.set(w, h);
+          return true;
+        }
+      }
+    } catch (IOException e) {
+      GameLog.logException(e);
+    }
+    clear();
+    return false;
+  }
+
+  void writeInfo(int width, int height) {
+    ByteBuffer buffer = ByteBuffer.allocate(INFO_SIZE);
+    buffer.putInt(MAGIC).putInt(width).putInt(height).putInt(tileSize).putInt(config.ordinal());
+    buffer.flip();
+    write(new File(directory, INFO_FILE), buffer);
+  }
+
+  @Nullable
+  Bitmap readPreview() {
+    return read(new File(directory, PREVIEW_FILE));
+  }
+
+  void writePreview(Bitmap bmp) {
+    write(new File(directory, PREVIEW_FILE), bmp);
+  }
+
+  /**
+   * Reads a tile from the cache
+   *
+   * @return The tile, or null if it is not cached
+   */
+  @Nullable
+  Bitmap readTile(int level, int col, int row) {
+    return read(getTileFile(level, col, row));
+  }
+
+  void writeTile(int level, int col, int row, Bitmap bmp) {
+    write(getTileFile(level, col, row), bmp);
+  }
+
+  /**
+   * Deletes all cached data of the source image
+   */
+  void clear() {
+    File[] files = directory.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /**
+   * Deletes the least recently used source images from the cache until it is within the given
+   * size.
+   */
+  static void trim(File root, long maxBytes) {
+    File[] sources = root.listFiles();
+    if (sources == null) return;
+    long total = 0L;
+    long[] sizes = new long[sources.length];
+    for (int i = 0; i < sources.length; i++) {
+      sizes[i] = getSize(sources[i]);
+      total += sizes[i];
+    }
+    while (total > maxBytes) {
+      int oldest = -1;
+      for (int i = 0; i < sources.length; i++) {
+        if ((sources[i] != null) && ((oldest < 0) || (sources[i].lastModified() < sources[oldest].lastModified())))
+          oldest = i;
+      }
+      if (oldest < 0) return;
+      File[] files = sources[oldest].listFiles();
+      if (files != null) {
+        for (File file : files) {
+          //noinspection ResultOfMethodCallIgnored
+          file.delete();
+        }
+      }
+      //noinspection ResultOfMethodCallIgnored
+      sources[oldest].delete();
+      total -= sizes[oldest];
+      sources[oldest] = null;
+    }
+  }
+
+  private static long getSize(File dir) {
+    long size = 0L;
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        size += file.length();
+      }
+    }
+    return size;
+  }
+
+  private File getTileFile(int level, int col, int row) {
+    return new File(directory, level + "_" + col + "_" + row + TILE_SUFFIX);
+  }
+
+  @Nullable
+  private Bitmap read(File file) {
+    if (!file.exists()) return null;
+    try {
+      ByteBuffer buffer = map(file);
+      if ((buffer.capacity() < HEADER_SIZE) || (buffer.getInt() != MAGIC)) return null;
+      int w = buffer.getInt();
+      int h = buffer.getInt();
+      if (buffer.getInt() != config.ordinal()) return null;
+      Bitmap bmp = Bitmap.createBitmap(w, h, config);
+      if (buffer.remaining() < (bmp.getRowBytes() * h)) return null;
+      bmp.copyPixelsFromBuffer(buffer);
+      return bmp;
+    } catch (IOException e) {
+      GameLog.logException(e);
+      return null;
+    }
+  }
+
+  private void write(File file, Bitmap bmp) {
+    if (bmp.getConfig() != config) return;
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (bmp.getRowBytes() * bmp.getHeight()));
+    buffer.putInt(MAGIC).putInt(bmp.getWidth()).putInt(bmp.getHeight()).putInt(config.ordinal());
+    bmp.copyPixelsToBuffer(buffer);
+    buffer.flip();
+    write(file, buffer);
+  }
+
+  /**
+   * Writes the buffer to a temporary file, and renames it into place, so that a partially written
+   * file is never read back.
+   */
+  private static void write(File file, ByteBuffer buffer) {
+    File temp = new File(file.getPath() + TEMP_SUFFIX + Thread.currentThread().getId());
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(temp);
+      FileChannel channel = out.getChannel();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      out.close();
+      out = null;
+      if (!temp.renameTo(file)) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+      }
+    } catch (IOException e) {
+      GameLog.logException(e);
+      //noinspection ResultOfMethodCallIgnored
+      temp.delete();
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException ignored) {
+          // NOOP
+        }
+      }
+    }
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, READ_MODE);
+    try {
+      FileChannel channel = raf.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+    } finally {
+      raf.close();
+    }
+  }
+
+  @SuppressWarnings("MagicNumber")
+  private static String sanitize(String key) {
+    StringBuilder sb = new StringBuilder(key.length());
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      sb.append(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) || (c == '-') ? c : '_');
+    }
+    // Avoid collisions between keys that sanitize to the same name
+    sb.append('_').append(Integer.toHexString(key.hashCode()));
+    return sb.toString();
+  }
+
+}
@@ -13,6 +13,7 @@
 package com.micabytes.gfx;
 
 import android.content.Context;
+import android.graphics.Rect;
 
 import com.micabytes.map.TileMap;
 
@@ -25,9 +26,12 @@ import com.micabytes.map.TileMap;
 public final class TileMapSurfaceRenderer extends SurfaceRenderer {
   // The low resolution version of the background image
   private TileMap gameSurfaceTileMap;
+  private final Rect dirtyRegion = new Rect();
 
-  private TileMapSurfaceRenderer(Context con) {
+  public TileMapSurfaceRenderer(Context con) {
     super(con);
+    // TileMap.drawBase only draws the base clip
+    viewPort.setScrollBlit(true);
   }
 
   /**
@@ -35,9 +39,18 @@ public final class TileMapSurfaceRenderer extends SurfaceRenderer {
    */
   public void setTileMap(TileMap map) {
     gameSurfaceTileMap = map;
+    map.setRenderer(this);
     backgroundSize.set(gameSurfaceTileMap.getRenderWidth(), gameSurfaceTileMap.getRenderHeight());
   }
 
+  @Override
+  public boolean prepareFrame(Rect dirty) {
+    if ((gameSurfaceTileMap != null) && gameSurfaceTileMap.takeDirtyRegion(dirtyRegion)) {
+      markDirty(dirtyRegion);
+    }
+    return super.prepareFrame(dirty);
+  }
+
   @Override
   public void drawBase() {
     gameSurfaceTileMap.drawBase(context, viewPort);
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
+
+/**
+ * TileSource provides the tiles of the image pyramid drawn by {@link BitmapSurfaceRenderer}. Level
+ * l of the pyramid has 1 / (1 << l) of the resolution of the image; its tiles cover (tileSize << l)
+ * pixels of the full image. Implementations must be safe for concurrent use by the decode workers.
+ */
+interface TileSource {
+
+  /**
+   * The width of the image at full resolution
+   */
+  int getWidth();
+
+  /**
+   * The height of the image at full resolution
+   */
+  int getHeight();
+
+  /**
+   * The heap memory (bytes) held by the source itself, not counting the decoded tiles; it is
+   * counted against the cache budget
+   */
+  long getHeapBytes();
+
+  /**
+   * Decodes a whole pyramid level of the image (used for the low resolution preview)
+   */
+  @Nullable
+  Bitmap decodeLevel(int level, BitmapFactory.Options opt);
+
+  /**
+   * Decodes a tile of the image pyramid
+   *
+   * @param worker The index of the decode worker
+   * @param level  The pyramid level
+   * @param col    The column of the tile within the level
+   * @param row    The row of the tile within the level
+   * @param region The region of the full resolution image covered by the tile
+   * @param opt    The decode options; inSampleSize is set by the source
+   */
+  @Nullable
+  Bitmap decodeTile(int worker, int level, int col, int row, Rect region, BitmapFactory.Options opt);
+
+  /**
+   * Releases the resources held by the source; after this, no more tiles are decoded
+   */
+  void close();
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.gfx;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+/**
+ * ViewState is an immutable snapshot of the state of a {@link SurfaceRenderer.ViewPort}: the window
+ * of the scene that is shown (origin and size, in scene pixels) and the zoom factor (scene pixels
+ * per screen pixel). Every change to the viewport publishes a new ViewState with a higher
+ * generation, so readers get a consistent view without locking, and can tell cheaply whether the
+ * view has changed.
+ */
+@SuppressWarnings("unused")
+public final class ViewState {
+  static final ViewState INITIAL = new ViewState(0, 0, 0, 0, 1.0f, 0L);
+  private final int left;
+  private final int top;
+  private final int width;
+  private final int height;
+  private final float zoom;
+  private final long generation;
+
+  private ViewState(int x, int y, int w, int h, float z, long gen) {
+    left = x;
+    top = y;
+    width = w;
+    height = h;
+    zoom = z;
+    generation = gen;
+  }
+
+  /**
+   * Returns the next state, with the given window and zoom
+   */
+  ViewState next(int x, int y, int w, int h, float z) {
+    return new ViewState(x, y, w, h, z, generation + 1);
+  }
+
+  public int getLeft() {
+    return left;
+  }
+
+  public int getTop() {
+    return top;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public float getZoom() {
+    return zoom;
+  }
+
+  /**
+   * The number of changes to the viewport before this state
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  public void getOrigin(Point out) {
+    out.set(left, top);
+  }
+
+  public void getSize(Point out) {
+    out.set(width, height);
+  }
+
+  /**
+   * Get the window of the scene that is shown
+   */
+  public void getWindow(Rect out) {
+    out.set(left, top, left + width, top + height);
+  }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.map;
+
+/**
+ * ArrayTileGrid is a {@link TileGrid} that holds the whole map in memory: the tile ids as a flat
+ * int array in row-major order, and each layer of per-tile data as a parallel int array. Rendering
+ * and simulation code can iterate the arrays returned by {@link #getIds()} and
+ * {@link #getLayer(int)} directly.
+ */
+@SuppressWarnings("unused")
+public class ArrayTileGrid extends TileGrid {
+  private final int[] ids;
+  private int[][] layers = new int[0][];
+
+  /**
+   * @param w     The width of the map in tiles
+   * @param h     The height of the map in tiles
+   * @param zones The palette of zones; tile id n refers to zones[n]. Element 0 is ignored.
+   */
+  public ArrayTileGrid(int w, int h, TileMapZone[] zones) {
+    this(w, h, zones, new int[w * h]);
+  }
+
+  /**
+   * @param data The tile ids (row-major); the array is used, not copied
+   */
+  public ArrayTileGrid(int w, int h, TileMapZone[] zones, int[] data) {
+    super(w, h, zones);
+    if (data.length != (w * h)) throw new IllegalArgumentException("Expected " + (w * h) + " tile ids, got " + data.length);
+    ids = data;
+  }
+
+  @Override
+  public int get(int x, int y) {
+    return ids[(y * width) + x];
+  }
+
+  @Override
+  public void set(int x, int y, int id) {
+    ids[(y * width) + x] = id;
+  }
+
+  @Override
+  public void getRow(int y, int x0, int x1, int[] out) {
+    if (x1 <= x0) return;
+    System.arraycopy(ids, (y * width) + x0, out, 0, x1 - x0);
+  }
+
+  /**
+   * Returns the tile ids (row-major). Changes to the array change the map.
+   */
+  public int[] getIds() {
+    return ids;
+  }
+
+  /**
+   * Adds a layer of per-tile data
+   *
+   * @return The number of the layer
+   */
+  public int addLayer() {
+    int[][] grown = new int[layers.length + 1][];
+    System.arraycopy(layers, 0, grown, 0, layers.length);
+    grown[layers.length] = new int[width * height];
+    layers = grown;
+    return layers.length - 1;
+  }
+
+  @Override
+  public int getLayerCount() {
+    return layers.length;
+  }
+
+  /**
+   * Returns the data of a layer (row-major, parallel to the tile ids). Changes to the array change
+   * the layer.
+   */
+  public int[] getLayer(int layer) {
+    return layers[layer];
+  }
+
+  @Override
+  public int getLayer(int layer, int x, int y) {
+    return layers[layer][(y * width) + x];
+  }
+
+  @Override
+  public void setLayer(int layer, int x, int y, int value) {
+    layers[layer][(y * width) + x] = value;
+  }
+
+}
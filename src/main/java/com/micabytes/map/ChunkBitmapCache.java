@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+
+import com.micabytes.gfx.BitmapTileCache;
+import com.micabytes.gfx.SurfaceRenderer;
+
+/**
+ * ChunkBitmapCache holds the pre-rendered base layer of a TileMap or HexMap. The map is divided
+ * into square chunks, which are rendered once into bitmaps of CHUNK_SIZE x CHUNK_SIZE pixels and
+ * kept in a byte-budgeted LRU cache; a frame is then drawn with a few chunk blits instead of one
+ * blit per tile.
+ * <p/>
+ * Chunks are rendered per zoom bucket: bucket b covers (CHUNK_SIZE << b) pixels of the map at a
+ * scale of 1 / (1 << b), and is used for zoom factors from 1 << b up to 1 << (b + 1).
+ */
+final class ChunkBitmapCache {
+  private static final int CHUNK_SIZE = 256;
+  private static final int MAX_BUCKET = 4;
+  private static final Bitmap.Config CONFIG = Bitmap.Config.ARGB_8888;
+
+  /**
+   * Renders a region of the map base layer
+   */
+  interface RegionPainter {
+    /**
+     * Draw the part of the map between left/top (inclusive) and right/bottom (exclusive), with
+     * left/top at the origin of the canvas, scaled down by the given factor.
+     */
+    void drawRegion(Canvas canvas, int left, int top, int right, int bottom, float scale);
+  }
+
+  private final RegionPainter painter;
+  private final BitmapTileCache chunks;
+  private final int[] bucketColumns = new int[MAX_BUCKET + 1];
+  private final int[] bucketRows = new int[MAX_BUCKET + 1];
+  private final int[] bucketOffset = new int[MAX_BUCKET + 2];
+  private int mapWidth;
+  private int mapHeight;
+  // Used while drawing
+  private final Canvas chunkCanvas = new Canvas();
+  private final Paint paint = new Paint();
+  private final Rect srcRect = new Rect();
+  private final Rect dstRect = new Rect();
+
+  ChunkBitmapCache(RegionPainter p, long maxBytes) {
+    painter = p;
+    chunks = new BitmapTileCache(maxBytes);
+    paint.setFilterBitmap(true);
+  }
+
+  /**
+   * Set the size of the map in pixels. Clears the cache.
+   */
+  synchronized void setMapSize(int w, int h) {
+    mapWidth = w;
+    mapHeight = h;
+    for (int b = 0; b <= MAX_BUCKET; b++) {
+      int size = CHUNK_SIZE << b;
+      bucketColumns[b] = (w + size - 1) / size;
+      bucketRows[b] = (h + size - 1) / size;
+      bucketOffset[b + 1] = bucketOffset[b] + (bucketColumns[b] * bucketRows[b]);
+    }
+    chunks.reset(bucketOffset[MAX_BUCKET + 1]);
+  }
+
+  void setMaxSize(long bytes) {
+    chunks.setMaxSize(bytes);
+  }
+
+  /**
+   * Invalidate the chunks (of all zoom buckets) that intersect a region of the map
+   */
+  synchronized void invalidate(Rect region) {
+    for (int b = 0; b <= MAX_BUCKET; b++) {
+      int size = CHUNK_SIZE << b;
+      int colMn = Math.max(0, region.left / size);
+      int rowMn = Math.max(0, region.top / size);
+      int colMx = Math.min(bucketColumns[b] - 1, (region.right - 1) / size);
+      int rowMx = Math.min(bucketRows[b] - 1, (region.bottom - 1) / size);
+      for (int row = rowMn; row <= rowMx; row++) {
+        for (int col = colMn; col <= colMx; col++) {
+          chunks.remove(bucketOffset[b] + (row * bucketColumns[b]) + col);
+        }
+      }
+    }
+  }
+
+  void invalidateAll() {
+    chunks.evictAll();
+  }
+
+  /**
+   * Draw the base layer of a window of the map. A point x, y of the map is drawn at
+   * SurfaceRenderer.toScreen(x, zoom) - originX, SurfaceRenderer.toScreen(y, zoom) - originY.
+   *
+   * @param zoom The number of map pixels per screen pixel
+   */
+  synchronized void draw(Canvas canvas, Rect window, float zoom, int originX, int originY) {
+    int windowLeft = window.left;
+    int windowTop = window.top;
+    int windowRight = window.right;
+    int windowBottom = window.bottom;
+    int b = 0;
+    while ((b < MAX_BUCKET) && ((1 << (b + 1)) <= zoom)) {
+      b++;
+    }
+    int size = CHUNK_SIZE << b;
+    int colMn = Math.max(0, windowLeft / size);
+    int rowMn = Math.max(0, windowTop / size);
+    int colMx = Math.min(bucketColumns[b] - 1, (windowRight - 1) / size);
+    int rowMx = Math.min(bucketRows[b] - 1, (windowBottom - 1) / size);
+    for (int row = rowMn; row <= rowMx; row++) {
+      for (int col = colMn; col <= colMx; col++) {
+        int id = bucketOffset[b] + (row * bucketColumns[b]) + col;
+        Bitmap bmp = chunks.get(id);
+        int left = col * size;
+        int top = row * size;
+        if (bmp == null) {
+          bmp = renderChunk(left, top, size, b);
+          chunks.put(id, bmp);
+        }
+        srcRect.set(0, 0, bmp.getWidth(), bmp.getHeight());
+        dstRect.set(
+            SurfaceRenderer.toScreen(left, zoom) - originX,
+            SurfaceRenderer.toScreen(top, zoom) - originY,
+            SurfaceRenderer.toScreen(left + (bmp.getWidth() << b), zoom) - originX,
+            SurfaceRenderer.toScreen(top + (bmp.getHeight() << b), zoom) - originY);
+        canvas.drawBitmap(bmp, srcRect, dstRect, paint);
+      }
+    }
+  }
+
+  private Bitmap renderChunk(int left, int top, int size, int bucket) {
+    int right = Math.min(mapWidth, left + size);
+    int bottom = Math.min(mapHeight, top + size);
+    Bitmap bmp = Bitmap.createBitmap(
+        Math.max(1, (right - left) >> bucket),
+        Math.max(1, (bottom - top) >> bucket),
+        CONFIG);
+    chunkCanvas.setBitmap(bmp);
+    chunkCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+    painter.drawRegion(chunkCanvas, left, top, right, bottom, 1 << bucket);
+    return bmp;
+  }
+
+}
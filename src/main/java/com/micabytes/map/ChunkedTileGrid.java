@@ -0,0 +1,333 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.map;
+
+import org.jetbrains.annotations.NonNls;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * ChunkedTileGrid is a {@link TileGrid} for maps that are larger than memory. The map is stored in
+ * a memory-mapped map file as square chunks of tiles (e.g., 32 x 32), and chunks are paged into a
+ * bounded LRU cache as they are needed. {@link #prefetch(int, int, int, int)} (called by TileMap
+ * and HexMap with the visible area) loads the chunks around the viewport, so memory use is bounded
+ * by the size of the viewport rather than the size of the map.
+ * <p/>
+ * Changes to the map are written through to the map file, if it is writable. The map file is
+ * big-endian:
+ * <pre>
+ * int   magic ("MTM1")
+ * int   width, height      size of the map in tiles
+ * int   chunkSize          size of the (square) chunks in tiles
+ * int   layers             number of layers of per-tile data
+ * chunks                   row-major; each chunk holds chunkSize * chunkSize tile ids, followed by
+ *                          the same number of values for each layer (row-major within the chunk)
+ * </pre>
+ */
+@SuppressWarnings({"unused", "AssignmentToNull"})
+public final class ChunkedTileGrid extends TileGrid {
+  private static final int MAGIC = 0x4d544d31; // "MTM1"
+  private static final int HEADER_SIZE = 20;
+  private static final int NONE = -1;
+  public static final int DEFAULT_CHUNK_SIZE = 32;
+  /**
+   * The number of chunks read ahead around the viewport
+   */
+  private static final int DEFAULT_READ_AHEAD = 1;
+  @NonNls private static final String READ_MODE = "r";
+  @NonNls private static final String WRITE_MODE = "rw";
+  private final int chunkSize;
+  private final int chunkShift;
+  private final int chunkColumns;
+  private final int chunkRows;
+  private final int layerCount;
+  // The number of ints in a chunk (the ids and all layers)
+  private final int chunkInts;
+  // The map file, in segments of whole chunks
+  private final ByteBuffer[] segments;
+  private final int chunksPerSegment;
+  private final boolean writable;
+  // The cached chunks, indexed by chunk id (row * chunkColumns + column)
+  private final int[][] chunks;
+  // Doubly linked LRU list; head is the most recently used chunk
+  private final int[] prev;
+  private final int[] next;
+  private int head = NONE;
+  private int tail = NONE;
+  private int count;
+  // The configured number of chunks to keep, and the current limit (at least the prefetched area)
+  private final int maxChunks;
+  private int chunkLimit;
+  private int readAhead = DEFAULT_READ_AHEAD;
+
+  private ChunkedTileGrid(int w, int h, TileMapZone[] zones, int chunk, int layers, ByteBuffer[] map, int perSegment, boolean write, int max) {
+    super(w, h, zones);
+    chunkSize = chunk;
+    chunkShift = Integer.numberOfTrailingZeros(chunk);
+    chunkColumns = (w + chunk - 1) / chunk;
+    chunkRows = (h + chunk - 1) / chunk;
+    layerCount = layers;
+    chunkInts = chunk * chunk * (layers + 1);
+    segments = map;
+    chunksPerSegment = perSegment;
+    writable = write;
+    int n = chunkColumns * chunkRows;
+    chunks = new int[n][];
+    prev = new int[n];
+    next = new int[n];
+    maxChunks = Math.max(1, max);
+    chunkLimit = maxChunks;
+  }
+
+  /**
+   * Opens a map file
+   *
+   * @param file      The map file
+   * @param zones     The palette of zones; tile id n refers to zones[n]
+   * @param maxChunks The number of chunks to keep in memory; more are kept while the area passed to
+   *                  prefetch needs them
+   */
+  public static ChunkedTileGrid open(File file, TileMapZone[] zones, int maxChunks) throws IOException {
+    boolean write = file.canWrite();
+    RandomAccessFile raf = new RandomAccessFile(file, write ? WRITE_MODE : READ_MODE);
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining()) {
+        if (channel.read(header, header.position()) < 0) throw new IOException("Truncated map file: " + file);
+      }
+      header.flip();
+      if (header.getInt() != MAGIC) throw new IOException("Not a map file: " + file);
+      int w = header.getInt();
+      int h = header.getInt();
+      int chunk = header.getInt();
+      int layers = header.getInt();
+      if (Integer.bitCount(chunk) != 1) throw new IOException("Chunk size is not a power of two: " + chunk);
+      long chunkBytes = (long) chunk * chunk * (layers + 1) * 4;
+      int n = ((w + chunk - 1) / chunk) * ((h + chunk - 1) / chunk);
+      if (channel.size() < (HEADER_SIZE + (n * chunkBytes))) throw new IOException("Truncated map file: " + file);
+      // Map the file in segments of whole chunks, as a single mapping is limited to 2 GB
+      int perSegment = (int) Math.max(1L, Integer.MAX_VALUE / chunkBytes);
+      ByteBuffer[] map = new ByteBuffer[(n + perSegment - 1) / perSegment];
+      FileChannel.MapMode mode = write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+      for (int i = 0; i < map.length; i++) {
+        int chunks = Math.min(perSegment, n - (i * perSegment));
+        map[i] = channel.map(mode, HEADER_SIZE + (i * perSegment * chunkBytes), chunks * chunkBytes);
+      }
+      return new ChunkedTileGrid(w, h, zones, chunk, layers, map, perSegment, write, maxChunks);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes a map to a map file
+   */
+  public static void write(TileGrid grid, File file, int chunkSize) throws IOException {
+    int w = grid.getWidth();
+    int h = grid.getHeight();
+    int layers = grid.getLayerCount();
+    RandomAccessFile raf = new RandomAccessFile(file, WRITE_MODE);
+    try {
+      raf.setLength(0L);
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(w).putInt(h).putInt(chunkSize).putInt(layers);
+      header.flip();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      ByteBuffer chunk = ByteBuffer.allocate(chunkSize * chunkSize * (layers + 1) * 4);
+      for (int cy = 0; cy < h; cy += chunkSize) {
+        for (int cx = 0; cx < w; cx += chunkSize) {
+          chunk.clear();
+          for (int layer = -1; layer < layers; layer++) {
+            for (int y = cy; y < (cy + chunkSize); y++) {
+              for (int x = cx; x < (cx + chunkSize); x++) {
+                if ((x >= w) || (y >= h)) chunk.putInt(EMPTY);
+                else chunk.putInt((layer < 0) ? grid.get(x, y) : grid.getLayer(layer, x, y));
+              }
+            }
+          }
+          chunk.flip();
+          while (chunk.hasRemaining()) {
+            channel.write(chunk);
+          }
+        }
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public boolean isWritable() {
+    return writable;
+  }
+
+  /**
+   * Set the number of chunks read ahead around the area passed to prefetch
+   */
+  public synchronized void setReadAhead(int chunks) {
+    readAhead = Math.max(0, chunks);
+  }
+
+  public synchronized int getCachedChunks() {
+    return count;
+  }
+
+  @Override
+  public synchronized int get(int x, int y) {
+    return getChunk(x, y)[getOffset(x, y)];
+  }
+
+  /**
+   * Sets the tile id. The change is written to the map file, so the map file must be writable.
+   */
+  @Override
+  public synchronized void set(int x, int y, int id) {
+    put(x, y, 0, id);
+  }
+
+  @Override
+  public synchronized void getRow(int y, int x0, int x1, int[] out) {
+    if (x1 <= x0) return;
+    int x = x0;
+    while (x < x1) {
+      int[] chunk = getChunk(x, y);
+      int n = Math.min(x1, ((x >> chunkShift) + 1) << chunkShift) - x;
+      System.arraycopy(chunk, getOffset(x, y), out, x - x0, n);
+      x += n;
+    }
+  }
+
+  /**
+   * Loads the chunks of an area of the map (in tiles), and the chunks around it. The cache is
+   * limited to the larger of maxChunks and this area, so it shrinks again after a zoom out.
+   */
+  @Override
+  public synchronized void prefetch(int x0, int y0, int x1, int y1) {
+    int cxMn = Math.max(0, (x0 >> chunkShift) - readAhead);
+    int cyMn = Math.max(0, (y0 >> chunkShift) - readAhead);
+    int cxMx = Math.min(chunkColumns - 1, ((Math.max(x0, x1 - 1)) >> chunkShift) + readAhead);
+    int cyMx = Math.min(chunkRows - 1, ((Math.max(y0, y1 - 1)) >> chunkShift) + readAhead);
+    // Make sure the area fits in the cache
+    chunkLimit = Math.max(maxChunks, ((cxMx - cxMn) + 1) * ((cyMx - cyMn) + 1));
+    for (int cy = cyMn; cy <= cyMx; cy++) {
+      for (int cx = cxMn; cx <= cxMx; cx++) {
+        loadChunk((cy * chunkColumns) + cx);
+      }
+    }
+    // The area is at the head of the LRU list; drop what a larger area left behind
+    while (count > chunkLimit) {
+      int evict = tail;
+      chunks[evict] = null;
+      unlink(evict);
+      count--;
+    }
+  }
+
+  @Override
+  public int getLayerCount() {
+    return layerCount;
+  }
+
+  @Override
+  public synchronized int getLayer(int layer, int x, int y) {
+    return getChunk(x, y)[((layer + 1) * chunkSize * chunkSize) + getOffset(x, y)];
+  }
+
+  @Override
+  public synchronized void setLayer(int layer, int x, int y, int value) {
+    put(x, y, layer + 1, value);
+  }
+
+  private void put(int x, int y, int plane, int value) {
+    int[] chunk = getChunk(x, y);
+    int offset = (plane * chunkSize * chunkSize) + getOffset(x, y);
+    int id = getChunkId(x, y);
+    segments[id / chunksPerSegment].putInt(((id % chunksPerSegment) * chunkInts + offset) * 4, value);
+    chunk[offset] = value;
+  }
+
+  private int getChunkId(int x, int y) {
+    return ((y >> chunkShift) * chunkColumns) + (x >> chunkShift);
+  }
+
+  private int getOffset(int x, int y) {
+    return ((y & (chunkSize - 1)) << chunkShift) + (x & (chunkSize - 1));
+  }
+
+  private int[] getChunk(int x, int y) {
+    return loadChunk(getChunkId(x, y));
+  }
+
+  /**
+   * Returns a chunk, reading it from the map file if it is not cached, and marks it as recently
+   * used.
+   */
+  private int[] loadChunk(int id) {
+    int[] chunk = chunks[id];
+    if (chunk != null) {
+      unlink(id);
+      linkFirst(id);
+      return chunk;
+    }
+    // Reuse the array of the least recently used chunk if the cache is full
+    if ((count >= chunkLimit) && (tail != NONE)) {
+      int evict = tail;
+      chunk = chunks[evict];
+      chunks[evict] = null;
+      unlink(evict);
+      count--;
+    } else {
+      chunk = new int[chunkInts];
+    }
+    ByteBuffer in = segments[id / chunksPerSegment].duplicate();
+    in.position((id % chunksPerSegment) * chunkInts * 4);
+    IntBuffer ints = in.asIntBuffer();
+    ints.get(chunk, 0, chunkInts);
+    chunks[id] = chunk;
+    linkFirst(id);
+    count++;
+    return chunk;
+  }
+
+  private void linkFirst(int id) {
+    prev[id] = NONE;
+    next[id] = head;
+    if (head != NONE) prev[head] = id;
+    head = id;
+    if (tail == NONE) tail = id;
+  }
+
+  private void unlink(int id) {
+    int p = prev[id];
+    int n = next[id];
+    if (p != NONE) next[p] = n;
+    else if (head == id) head = n;
+    if (n != NONE) prev[n] = p;
+    else if (tail == id) tail = p;
+    prev[id] = NONE;
+    next[id] = NONE;
+  }
+
+}
@@ -18,13 +18,18 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.support.annotation.Nullable;
 
 import com.micabytes.gfx.SurfaceRenderer;
+import com.micabytes.math.Hex;
 import com.micabytes.util.GameLog;
 
 /**
  * HexMap superclass <p/> This implementation works for pointy-side up HexMaps. Needs to be adjusted
  * if it is going to be used for flat-side up maps.
+ * <p/>
+ * The base layer can be pre-rendered in chunks (see {@link #setChunkCacheSize(long)}); with the
+ * chunk cache, changed or animated zones are only redrawn when they are marked dirty.
  */
 @SuppressWarnings("unused")
 public abstract class HexMap {
@@ -34,7 +39,15 @@ public abstract class HexMap {
   private static int mapHeight = 0;
   private static int tileSlope = 0;
   private static Rect tileRect = new Rect();
+  /**
+   * @deprecated The map is held in the TileGrid (see {@link #getTileGrid()}); this is only set by
+   * {@link #setHexMap(TileMapZone[][])}, and changes to it are not drawn.
+   */
+  @Deprecated
   protected TileMapZone[][] zones;
+  protected TileGrid grid;
+  // The tile ids of the row being drawn
+  private int[] rowIds = new int[0];
   protected float scaleFactor;
   protected final Point viewPortOrigin = new Point();
   protected final Point viewPortSize = new Point();
@@ -44,6 +57,17 @@ public abstract class HexMap {
   protected int windowRight;
   protected int windowBottom;
   private final Paint tilePaint = new Paint();
+  private final Rect tileDest = new Rect();
+  private final Rect dirtyRect = new Rect();
+  private final Point baseOrigin = new Point();
+  private final Rect baseClip = new Rect();
+  private final Rect baseWindow = new Rect();
+  private final Rect dirtyArea = new Rect();
+  // The area of the map (in pixels) that has changed since the last frame
+  private final Rect dirtyRegion = new Rect();
+  @Nullable private volatile SurfaceRenderer renderer;
+  // The pre-rendered base layer (null if disabled)
+  @Nullable private ChunkBitmapCache chunkCache;
   protected final Paint tileText = new Paint();
   // Draw
   protected final Canvas canvas = new Canvas();
@@ -56,80 +80,234 @@ public abstract class HexMap {
     select.setStyle(Paint.Style.STROKE);
     select.setColor(Color.RED);
     select.setStrokeWidth(2);
-
   }
 
-  @SuppressWarnings("AssignmentToStaticFieldFromInstanceMethod")
+  @SuppressWarnings("deprecation")
   public void setHexMap(TileMapZone[][] map) {
     zones = new TileMapZone[map.length][map[0].length];
     for (int i = 0; i < map.length; i++) {
       System.arraycopy(map[i], 0, zones[i], 0, map[i].length);
     }
-    mapHeight = map[0].length;
-    mapWidth = map.length;
-    tileRect = new Rect(0, 0, map[0][0].getWidth(), map[0][0].getHeight());
+    setHexMap(TileGrid.fromZones(map));
+  }
+
+  @SuppressWarnings("AssignmentToStaticFieldFromInstanceMethod")
+  public void setHexMap(TileGrid map) {
+    grid = map;
+    mapHeight = map.getHeight();
+    mapWidth = map.getWidth();
+    TileMapZone zone = map.getFirstZone();
+    tileRect = (zone == null) ? new Rect() : new Rect(0, 0, zone.getWidth(), zone.getHeight());
     tileSlope = tileRect.height() / 4;
+    if (chunkCache != null) chunkCache.setMapSize(getRenderWidth(), getRenderHeight());
+  }
+
+  public TileGrid getTileGrid() {
+    return grid;
+  }
+
+  /**
+   * Set the size of the cache of pre-rendered chunks of the base layer (e.g., a tenth of
+   * Runtime.maxMemory()). The cache is off (0) by default, and the base layer is drawn tile by tile
+   * every frame. With the cache, tiles are only redrawn when they are marked dirty: call
+   * {@link #markDirty(int, int)} (or {@link #invalidate()}) whenever a zone changes or animates.
+   */
+  public final void setChunkCacheSize(long bytes) {
+    if (bytes <= 0L) {
+      chunkCache = null;
+    } else if (chunkCache == null) {
+      chunkCache = new ChunkBitmapCache(new ChunkBitmapCache.RegionPainter() {
+        @Override
+        public void drawRegion(Canvas c, int left, int top, int right, int bottom, float scale) {
+          drawTiles(c, left, top, right, bottom, scale,
+              SurfaceRenderer.toScreen(left, scale), SurfaceRenderer.toScreen(top, scale));
+        }
+      }, bytes);
+      if (grid != null) chunkCache.setMapSize(getRenderWidth(), getRenderHeight());
+    } else {
+      chunkCache.setMaxSize(bytes);
+    }
+  }
+
+  /**
+   * Set the tile id of a tile, and redraw it
+   */
+  public void setTile(int i, int j, int id) {
+    if (grid == null) return;
+    grid.set(i, j, id);
+    markDirty(i, j);
+  }
+
+  /**
+   * Mark a tile as changed (e.g., its zone, or a unit on it), so that it is redrawn in the next
+   * frame
+   */
+  public void markDirty(int i, int j) {
+    if (grid == null) return;
+    int left = getTileLeft(i, j);
+    int top = getTileTop(j);
+    markDirtyArea(left, top, left + tileRect.width(), top + tileRect.height());
+  }
+
+  /**
+   * Mark the tiles from left/top (inclusive) to right/bottom (exclusive) as changed
+   */
+  public void markDirty(Rect tiles) {
+    if ((grid == null) || tiles.isEmpty()) return;
+    int x0 = standardOrientation ? tiles.left : (mapWidth - tiles.right);
+    int x1 = standardOrientation ? tiles.right : (mapWidth - tiles.left);
+    int y0 = standardOrientation ? tiles.top : (mapHeight - tiles.bottom);
+    int y1 = standardOrientation ? tiles.bottom : (mapHeight - tiles.top);
+    int yOffset = tileRect.height() - tileSlope;
+    // Rows are offset by half a tile alternately; cover both
+    markDirtyArea(
+        (x0 * tileRect.width()) - (tileRect.width() / 2),
+        (y0 * (tileRect.height() - tileSlope)) - yOffset,
+        x1 * tileRect.width(),
+        (((y1 - 1) * (tileRect.height() - tileSlope)) - yOffset) + tileRect.height());
+  }
+
+  /**
+   * Redraw the whole map
+   */
+  public void invalidate() {
+    if (grid == null) return;
+    if (chunkCache != null) chunkCache.invalidateAll();
+    markDirtyArea(-tileRect.width(), -tileRect.height(), getRenderWidth(), getRenderHeight());
+  }
+
+  private void markDirtyArea(int left, int top, int right, int bottom) {
+    synchronized (this) {
+      dirtyRect.set(left, top, right, bottom);
+      if (chunkCache != null) chunkCache.invalidate(dirtyRect);
+      dirtyRegion.union(dirtyRect);
+    }
+    SurfaceRenderer r = renderer;
+    if (r != null) r.requestRender();
+  }
+
+  /**
+   * Set the renderer that draws the map; it is asked for a frame when tiles are marked dirty.
+   * Called by the map surface renderers.
+   */
+  public void setRenderer(@Nullable SurfaceRenderer r) {
+    renderer = r;
+  }
+
+  /**
+   * Get (and clear) the area of the map, in pixels, that has changed since the last call
+   *
+   * @return false if nothing has changed
+   */
+  public synchronized boolean takeDirtyRegion(Rect out) {
+    if (dirtyRegion.isEmpty()) return false;
+    out.set(dirtyRegion);
+    dirtyRegion.setEmpty();
+    return true;
+  }
+
+  private static int getRenderWidth() {
+    return mapWidth * tileRect.width();
+  }
+
+  private static int getRenderHeight() {
+    return (mapHeight * (tileRect.height() - tileSlope)) + tileSlope;
   }
 
-  @SuppressWarnings({"MethodWithMultipleLoops", "OverlyComplexMethod", "OverlyLongMethod", "NumericCastThatLosesPrecision"})
   public void drawBase(Context con, SurfaceRenderer.ViewPort p) {
     if (p.getBitmap() == null) {
       GameLog.e(TAG, "Viewport bitmap is null");
       return;
     }
+    // No map yet, or no tile to take the size from
+    if ((grid == null) || tileRect.isEmpty() || (tileRect.height() <= tileSlope)) return;
     canvas.setBitmap(p.getBitmap());
     scaleFactor = p.getZoom();
-    int yOffset = tileRect.height() - tileSlope;
     p.getOrigin(viewPortOrigin);
     p.getSize(viewPortSize);
     windowLeft = viewPortOrigin.x;
     windowTop = viewPortOrigin.y;
     windowRight = viewPortOrigin.x + viewPortSize.x;
     windowBottom = viewPortOrigin.y + viewPortSize.y;
+    // Changes not yet passed on by the renderer (see HexMapSurfaceRenderer.prepareFrame)
+    if (takeDirtyRegion(dirtyArea)) p.markDirty(dirtyArea);
+    // Only the part of the viewport exposed by a pan (if any) needs to be drawn
+    p.getBaseClip(baseClip);
+    if (baseClip.isEmpty()) return;
+    p.getBaseWindow(baseWindow);
+    p.getBaseOrigin(baseOrigin);
+    float zoom = p.getBaseZoom();
+    canvas.save();
+    canvas.clipRect(baseClip);
+    if (chunkCache != null) {
+      chunkCache.draw(canvas, baseWindow, zoom, baseOrigin.x, baseOrigin.y);
+    } else {
+      drawTiles(canvas, baseWindow.left, baseWindow.top, baseWindow.right, baseWindow.bottom, zoom, baseOrigin.x, baseOrigin.y);
+    }
+    canvas.restore();
+  }
+
+  /**
+   * Draw the tiles in a window of the map. A point x, y of the map is drawn at
+   * SurfaceRenderer.toScreen(x, scale) - originX, SurfaceRenderer.toScreen(y, scale) - originY.
+   */
+  @SuppressWarnings({"MethodWithMultipleLoops", "OverlyComplexMethod", "OverlyLongMethod"})
+  private void drawTiles(Canvas c, int left, int top, int right, int bottom, float scale, int originX, int originY) {
+    int yOffset = tileRect.height() - tileSlope;
     int xOffset;
+    // Draw from pre-scaled tiles when zoomed out
+    int level = TileMapZone.getMipmapLevel(scale);
     if (standardOrientation) {
       // Clip tiles not in view
-      int iMn = (windowLeft / tileRect.width()) - 1;
+      int iMn = (left / tileRect.width()) - 1;
       if (iMn < 0) iMn = 0;
-      int jMn = (windowTop / (tileRect.height() - tileSlope)) - 1;
+      int jMn = (top / (tileRect.height() - tileSlope)) - 1;
       if (jMn < 0) jMn = 0;
-      int iMx = (windowRight / tileRect.width()) + 2;
+      int iMx = (right / tileRect.width()) + 2;
       if (iMx >= mapWidth) iMx = mapWidth;
-      int jMx = (windowBottom / (tileRect.height() - tileSlope)) + 2;
+      int jMx = (bottom / (tileRect.height() - tileSlope)) + 2;
       if (jMx >= mapHeight) jMx = mapHeight;
-      // Draw Tiles
-      for (int i = iMn; i < iMx; i++) {
-        for (int j = jMn; j < jMx; j++) {
-          if (zones[i][j] != null) {
+      // Draw Tiles, row by row along the tile id array
+      grid.prefetch(iMn, jMn, iMx, jMx);
+      if (rowIds.length < (iMx - iMn)) rowIds = new int[iMx - iMn];
+      for (int j = jMn; j < jMx; j++) {
+        grid.getRow(j, iMn, iMx, rowIds);
+        for (int i = iMn; i < iMx; i++) {
+          int id = rowIds[i - iMn];
+          if (id != TileGrid.EMPTY) {
             xOffset = (j % 2) == 0 ? tileRect.width() / 2 : 0;
-            destRect.left = (int) (((i * tileRect.width()) - windowLeft - xOffset) / scaleFactor);
-            destRect.top = (int) (((j * (tileRect.height() - tileSlope)) - windowTop - yOffset) / scaleFactor);
-            destRect.right = (int) ((((i * tileRect.width()) + tileRect.width()) - windowLeft - xOffset) / scaleFactor);
-            destRect.bottom = (int) ((((j * (tileRect.height() - tileSlope)) + tileRect.height()) - windowTop - yOffset) / scaleFactor);
-            zones[i][j].drawBase(canvas, tileRect, destRect, tilePaint);
+            tileDest.left = SurfaceRenderer.toScreen((i * tileRect.width()) - xOffset, scale) - originX;
+            tileDest.top = SurfaceRenderer.toScreen((j * (tileRect.height() - tileSlope)) - yOffset, scale) - originY;
+            tileDest.right = SurfaceRenderer.toScreen(((i * tileRect.width()) + tileRect.width()) - xOffset, scale) - originX;
+            tileDest.bottom = SurfaceRenderer.toScreen(((j * (tileRect.height() - tileSlope)) + tileRect.height()) - yOffset, scale) - originY;
+            grid.getPaletteZone(id).drawBase(c, tileRect, tileDest, tilePaint, level);
           }
         }
       }
     } else {
       // Clip tiles not in view
-      int iMn = mapWidth - (windowRight / tileRect.width()) - 2;
+      int iMn = mapWidth - (right / tileRect.width()) - 2;
       if (iMn < 0) iMn = 0;
-      int jMn = mapHeight - ((windowBottom / (tileRect.height() - tileSlope)) + 2);
+      int jMn = mapHeight - ((bottom / (tileRect.height() - tileSlope)) + 2);
       if (jMn < 0) jMn = 0;
-      int iMx = mapWidth - ((windowLeft / tileRect.width()) + 1);
+      int iMx = mapWidth - ((left / tileRect.width()) + 1);
       if (iMx >= mapWidth) iMx = mapWidth - 1;
-      int jMx = mapHeight - ((windowTop / (tileRect.height() - tileSlope)) + 1);
+      int jMx = mapHeight - ((top / (tileRect.height() - tileSlope)) + 1);
       if (jMx >= mapHeight) jMx = mapHeight - 1;
-      // Draw Tiles
-      for (int i = iMx; i >= iMn; i--) {
-        for (int j = jMx; j >= jMn; j--) {
-          if (zones[i][j] != null) {
+      // Draw Tiles, row by row along the tile id array
+      grid.prefetch(iMn, jMn, iMx + 1, jMx + 1);
+      if (rowIds.length < ((iMx - iMn) + 1)) rowIds = new int[(iMx - iMn) + 1];
+      for (int j = jMx; j >= jMn; j--) {
+        grid.getRow(j, iMn, iMx + 1, rowIds);
+        for (int i = iMx; i >= iMn; i--) {
+          int id = rowIds[i - iMn];
+          if (id != TileGrid.EMPTY) {
             xOffset = (j % 2) == 1 ? tileRect.width() / 2 : 0;
-            destRect.left = (int) ((((mapWidth - i - 1) * tileRect.width()) - windowLeft - xOffset) / scaleFactor);
-            destRect.top = (int) ((((mapHeight - j - 1) * (tileRect.height() - tileSlope)) - windowTop - yOffset) / scaleFactor);
-            destRect.right = (int) (((((mapWidth - i - 1) * tileRect.width()) + tileRect.width()) - windowLeft - xOffset) / scaleFactor);
-            destRect.bottom = (int) (((((mapHeight - j - 1) * (tileRect.height() - tileSlope)) + tileRect.height()) - windowTop - yOffset) / scaleFactor);
-            zones[i][j].drawBase(canvas, tileRect, destRect, tilePaint);
+            tileDest.left = SurfaceRenderer.toScreen(((mapWidth - i - 1) * tileRect.width()) - xOffset, scale) - originX;
+            tileDest.top = SurfaceRenderer.toScreen(((mapHeight - j - 1) * (tileRect.height() - tileSlope)) - yOffset, scale) - originY;
+            tileDest.right = SurfaceRenderer.toScreen((((mapWidth - i - 1) * tileRect.width()) + tileRect.width()) - xOffset, scale) - originX;
+            tileDest.bottom = SurfaceRenderer.toScreen((((mapHeight - j - 1) * (tileRect.height() - tileSlope)) + tileRect.height()) - yOffset, scale) - originY;
+            grid.getPaletteZone(id).drawBase(c, tileRect, tileDest, tilePaint, level);
           }
         }
       }
@@ -140,7 +318,70 @@ public abstract class HexMap {
 
   public abstract void drawFinal(Context context, SurfaceRenderer.ViewPort p);
 
-  public abstract Point getViewPortOrigin(int x, int y, SurfaceRenderer.ViewPort p);
+  /**
+   * The origin of the viewport that centers the view on a tile (see
+   * {@link SurfaceRenderer#setMapPosition(int, int)})
+   */
+  public Point getViewPortOrigin(int x, int y, SurfaceRenderer.ViewPort p) {
+    Point size = new Point();
+    p.getSize(size);
+    return new Point(getTileCenterX(x, y) - (size.x / 2), getTileCenterY(y) - (size.y / 2));
+  }
+
+  /**
+   * The left edge of the image of a tile, in map pixels
+   */
+  private static int getTileLeft(int i, int j) {
+    int x = standardOrientation ? i : (mapWidth - i - 1);
+    int xOffset = ((j % 2) == (standardOrientation ? 0 : 1)) ? tileRect.width() / 2 : 0;
+    return (x * tileRect.width()) - xOffset;
+  }
+
+  /**
+   * The top edge of the image of a tile, in map pixels
+   */
+  private static int getTileTop(int j) {
+    int y = standardOrientation ? j : (mapHeight - j - 1);
+    return (y * (tileRect.height() - tileSlope)) - (tileRect.height() - tileSlope);
+  }
+
+  /**
+   * The center of a tile, in map pixels
+   */
+  public static int getTileCenterX(int i, int j) {
+    return getTileLeft(i, j) + (tileRect.width() / 2);
+  }
+
+  public static int getTileCenterY(int j) {
+    return getTileTop(j) + (tileRect.height() / 2);
+  }
+
+  /**
+   * Get the tile at a point of the map (picking). The tiles are laid out in rows, which are offset
+   * by half a tile alternately; as offset coordinates, these are Hex.ODD_R (with the row parity
+   * flipped if the map is reversed and has an odd number of rows).
+   *
+   * @param x   The point, in map pixels
+   * @param y   The point, in map pixels
+   * @param out Set to the column and row of the tile
+   * @return false if the point is not on a tile of the map
+   */
+  public static boolean getTileAt(int x, int y, Point out) {
+    int w = tileRect.width();
+    int rowHeight = tileRect.height() - tileSlope;
+    if ((w <= 0) || (rowHeight <= 0)) return false;
+    // Hex (0, 0) of the display grid is the tile drawn at the top left; its center is at x = 0
+    int rowShift = standardOrientation ? 0 : (mapHeight & 1);
+    float px = x;
+    float py = (y + (rowShift * rowHeight) + rowHeight) - (tileRect.height() / 2.0f);
+    long hex = Hex.fromPixel(px, py, Hex.POINTY, w, rowHeight / 0.75f);
+    long offset = Hex.toOffset(hex, Hex.ODD_R);
+    int col = Hex.q(offset);
+    int row = Hex.r(offset) - rowShift;
+    out.x = standardOrientation ? col : (mapWidth - col - 1);
+    out.y = standardOrientation ? row : (mapHeight - row - 1);
+    return (out.x >= 0) && (out.x < mapWidth) && (out.y >= 0) && (out.y < mapHeight);
+  }
 
   public static boolean isStandardOrientation() {
     return standardOrientation;
@@ -0,0 +1,649 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.map;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HierarchicalPathFinder (HPA*) answers long path queries on large maps. The map is divided into
+ * square clusters; where two neighboring clusters are connected, each connected stretch of the
+ * border between them gets one or two entrances (a pair of tiles, one on each side). The entrances
+ * form an abstract graph: the entrance tiles of a cluster are connected with the cost of the
+ * shortest path between them within the cluster, and with the entrance tile on the other side of
+ * the border.
+ * <p/>
+ * A query connects the start and the goal to the entrances of their clusters, searches the abstract
+ * graph, and refines the resulting waypoints into a path with {@link PathFinder} searches that are
+ * confined to one cluster each. Paths are close to, but not always, the shortest. Callers that
+ * only need the next part of a long path can refine the waypoints one segment at a time.
+ * <p/>
+ * Crossings that can only be made one way get transitions too, except those out of tiles that
+ * cannot be entered (walls), as such a tile can only be the start of a path; a query that starts on
+ * one connects its crossings itself.
+ * <p/>
+ * When the cost of tiles changes, call {@link #markChanged(int, int, int, int)}; the clusters
+ * involved (and their neighbors, whose entrances may change) are rebuilt before the next query.
+ */
+@SuppressWarnings("unused")
+public final class HierarchicalPathFinder {
+  public static final int DEFAULT_CLUSTER_SIZE = 16;
+  // Runs of crossings from at least this many border tiles get an entrance at each end
+  private static final int LONG_ENTRANCE = 6;
+  private static final int NONE = -1;
+  // The directions a pair of tiles on the border between clusters lo < hi can be crossed in
+  private static final int LO_TO_HI = 1;
+  private static final int HI_TO_LO = 2;
+  private final PathFinder finder;
+  private final int width;
+  private final int height;
+  private final int clusterSize;
+  private final int clusterColumns;
+  private final int clusterRows;
+  private final Cluster[] clusters;
+  // The transitions between two neighboring clusters, by pair key; (a, b, cost a->b, cost b->a) for each
+  private final Map<Long, int[]> transitions = new HashMap<>();
+  // The index of each tile in the entrance tiles of its cluster (NONE if it is not an entrance)
+  private final int[] slotOfTile;
+  private final boolean[] dirty;
+  private boolean anyDirty;
+  // Used while building and querying (guarded by this)
+  private final int[] neighbors = new int[8];
+  private final int[] neighbors2 = new int[8];
+  private final IntList found = new IntList();
+  private final IntList run = new IntList();
+  // The number of border tiles of lo in the current run, and the directions its pairs can be crossed in
+  private int runTiles;
+  private int runWays;
+  private int[] startCost = new int[0];
+  private int[] goalCost = new int[0];
+  // The nodes of the abstract search: entrance slot of cluster c is node nodeOffset[c] + slot, and
+  // the start and the goal follow the entrances
+  private final int[] nodeOffset;
+  private int[] nodeTile = new int[0];
+  private final PathFinder.SearchState state = new PathFinder.SearchState();
+  // The crossings out of a start that cannot be entered: the tile crossed to, the cost of the
+  // crossing, and the costs from that tile to the entrances of its cluster and to the goal
+  private final int[] exitTile = new int[8];
+  private final int[] exitCost = new int[8];
+  private final int[][] exitCosts = new int[8][0];
+  private final int[] exitGoalCost = new int[8];
+  private int exits;
+
+  /**
+   * The abstract graph within a cluster
+   */
+  private static final class Cluster {
+    static final Cluster EMPTY = new Cluster(new int[0], new int[0], new int[1], new int[0], new int[0]);
+    // The entrance tiles
+    final int[] tiles;
+    // The cost from entrance i to entrance j (NONE if not connected), at i * n + j
+    final int[] intra;
+    // The transitions from entrance i, at interStart[i] to interStart[i + 1]
+    final int[] interStart;
+    final int[] interTarget;
+    final int[] interCost;
+
+    Cluster(int[] t, int[] c, int[] start, int[] target, int[] cost) {
+      tiles = t;
+      intra = c;
+      interStart = start;
+      interTarget = target;
+      interCost = cost;
+    }
+  }
+
+  /**
+   * @param pathFinder The PathFinder of the map (its cost function and topology are used)
+   * @param size       The width and height of a cluster, in tiles
+   */
+  public HierarchicalPathFinder(PathFinder pathFinder, int size) {
+    finder = pathFinder;
+    width = pathFinder.getWidth();
+    height = pathFinder.getHeight();
+    clusterSize = size;
+    clusterColumns = (width + size - 1) / size;
+    clusterRows = (height + size - 1) / size;
+    clusters = new Cluster[clusterColumns * clusterRows];
+    Arrays.fill(clusters, Cluster.EMPTY);
+    slotOfTile = new int[width * height];
+    Arrays.fill(slotOfTile, NONE);
+    dirty = new boolean[clusters.length];
+    nodeOffset = new int[clusters.length + 1];
+    rebuild();
+  }
+
+  /**
+   * Rebuild the whole abstract graph
+   */
+  public synchronized void rebuild() {
+    Arrays.fill(dirty, true);
+    anyDirty = true;
+    update();
+  }
+
+  /**
+   * Mark the tiles from left/top (inclusive) to right/bottom (exclusive) as changed (e.g., their
+   * cost, or whether they can be entered)
+   */
+  public synchronized void markChanged(int left, int top, int right, int bottom) {
+    int c0 = Math.max(0, left) / clusterSize;
+    int r0 = Math.max(0, top) / clusterSize;
+    int c1 = (Math.min(width, right) - 1) / clusterSize;
+    int r1 = (Math.min(height, bottom) - 1) / clusterSize;
+    for (int r = r0; r <= r1; r++) {
+      for (int c = c0; c <= c1; c++) {
+        dirty[(r * clusterColumns) + c] = true;
+        anyDirty = true;
+      }
+    }
+  }
+
+  public void markChanged(int x, int y) {
+    markChanged(x, y, x + 1, y + 1);
+  }
+
+  /**
+   * Find a path between two tiles
+   *
+   * @return The tile indices of the path, from start to goal (inclusive), or null if there is none
+   */
+  @Nullable
+  public int[] findPath(int startX, int startY, int goalX, int goalY) {
+    int[] waypoints = findWaypoints(startX, startY, goalX, goalY);
+    if (waypoints == null) return null;
+    IntList path = new IntList();
+    path.add(waypoints[0]);
+    for (int i = 1; i < waypoints.length; i++) {
+      int[] segment = refineSegment(waypoints[i - 1], waypoints[i]);
+      // The graph changed since the waypoints were found
+      if (segment == null) return null;
+      for (int k = 1; k < segment.length; k++) {
+        path.add(segment[k]);
+      }
+    }
+    return path.toArray();
+  }
+
+  /**
+   * Find the waypoints of a path between two tiles: the start, the entrances passed through, and
+   * the goal. Consecutive waypoints are either in the same cluster or neighbors; see
+   * {@link #refineSegment(int, int)}.
+   *
+   * @return The tile indices of the waypoints, or null if there is no path
+   */
+  @Nullable
+  public synchronized int[] findWaypoints(int startX, int startY, int goalX, int goalY) {
+    if ((startX < 0) || (startX >= width) || (startY < 0) || (startY >= height)) return null;
+    if ((goalX < 0) || (goalX >= width) || (goalY < 0) || (goalY >= height)) return null;
+    update();
+    int start = finder.getIndex(startX, startY);
+    int goal = finder.getIndex(goalX, goalY);
+    int startCluster = clusterOf(start);
+    int goalCluster = clusterOf(goal);
+    // Within one cluster, a local path will do
+    if (startCluster == goalCluster) {
+      int c = clusterOf(start);
+      if (finder.findCost(startX, startY, goalX, goalY, clusterLeft(c), clusterTop(c), clusterRight(c), clusterBottom(c)) != PathFinder.NO_PATH) {
+        return (start == goal) ? new int[]{start} : new int[]{start, goal};
+      }
+    }
+    // Connect the start and the goal to the entrances of their clusters
+    Cluster sc = clusters[startCluster];
+    Cluster gc = clusters[goalCluster];
+    if (startCost.length < sc.tiles.length) startCost = new int[sc.tiles.length];
+    if (goalCost.length < gc.tiles.length) goalCost = new int[gc.tiles.length];
+    localCosts(start, sc.tiles, false, startCluster, startCost);
+    localCosts(goal, gc.tiles, true, goalCluster, goalCost);
+    // A start that cannot be entered has no transitions of its own
+    exits = 0;
+    if (!isEnterable(start)) findExits(start, startCluster, goal, goalCluster);
+    return search(start, goal, startCluster, goalCluster);
+  }
+
+  /**
+   * Refine a segment between two consecutive waypoints into a path
+   *
+   * @return The tile indices of the path, from one waypoint to the other (inclusive), or null if
+   * there is none (e.g., as the tiles have changed)
+   */
+  @Nullable
+  public int[] refineSegment(int from, int to) {
+    int c = clusterOf(from);
+    if (c != clusterOf(to)) {
+      // A transition between neighboring clusters
+      return (finder.getCost(from, to) >= 0) ? new int[]{from, to} : null;
+    }
+    return finder.findPath(finder.getX(from), finder.getY(from), finder.getX(to), finder.getY(to),
+        clusterLeft(c), clusterTop(c), clusterRight(c), clusterBottom(c));
+  }
+
+  /**
+   * The number of entrance tiles in the abstract graph
+   */
+  public synchronized int getEntranceCount() {
+    update();
+    return nodeTile.length;
+  }
+
+  /**
+   * A* on the abstract graph, with the start and the goal connected to their clusters through
+   * startCost and goalCost, and the start to the clusters it crosses into through its exits. The
+   * search state is indexed by node, so it only grows with the number of entrances.
+   */
+  @SuppressWarnings({"MethodWithMultipleLoops", "OverlyComplexMethod", "OverlyLongMethod", "OverlyNestedMethod"})
+  @Nullable
+  private int[] search(int start, int goal, int startCluster, int goalCluster) {
+    int entrances = nodeTile.length;
+    int startNode = entrances;
+    int goalNode = entrances + 1;
+    int exitNode = entrances + 2;
+    PathFinder.SearchState s = state;
+    int gen = s.begin(exitNode + exits);
+    int[] g = s.g;
+    int[] parent = s.parent;
+    int[] seen = s.seen;
+    int[] closed = s.closed;
+    seen[startNode] = gen;
+    g[startNode] = 0;
+    parent[startNode] = NONE;
+    s.push(startNode, finder.estimate(start, goal));
+    while (s.size > 0) {
+      int node = s.pop();
+      if (closed[node] == gen) continue;
+      closed[node] = gen;
+      if (node == goalNode) return waypoints(parent, goalNode, start, goal);
+      int base = g[node];
+      if (node == startNode) {
+        Cluster sc = clusters[startCluster];
+        int offset = nodeOffset[startCluster];
+        for (int i = 0; i < sc.tiles.length; i++) {
+          if (startCost[i] != NONE) relax(gen, node, offset + i, sc.tiles[i], base + startCost[i], goal);
+        }
+        for (int i = 0; i < exits; i++) {
+          relax(gen, node, exitNode + i, exitTile[i], base + exitCost[i], goal);
+        }
+        continue;
+      }
+      if (node >= exitNode) {
+        int i = node - exitNode;
+        int cluster = clusterOf(exitTile[i]);
+        Cluster c = clusters[cluster];
+        int offset = nodeOffset[cluster];
+        int[] costs = exitCosts[i];
+        for (int j = 0; j < c.tiles.length; j++) {
+          if (costs[j] != NONE) relax(gen, node, offset + j, c.tiles[j], base + costs[j], goal);
+        }
+        if (exitGoalCost[i] != NONE) relax(gen, node, goalNode, goal, base + exitGoalCost[i], goal);
+        continue;
+      }
+      int tile = nodeTile[node];
+      int cluster = clusterOf(tile);
+      int offset = nodeOffset[cluster];
+      int slot = node - offset;
+      Cluster c = clusters[cluster];
+      int n = c.tiles.length;
+      for (int j = 0; j < n; j++) {
+        int cost = c.intra[(slot * n) + j];
+        if ((j != slot) && (cost != NONE)) relax(gen, node, offset + j, c.tiles[j], base + cost, goal);
+      }
+      for (int k = c.interStart[slot]; k < c.interStart[slot + 1]; k++) {
+        int next = c.interTarget[k];
+        relax(gen, node, nodeOffset[clusterOf(next)] + slotOfTile[next], next, base + c.interCost[k], goal);
+      }
+      if (cluster == goalCluster) {
+        int cost = goalCost[slot];
+        if (cost != NONE) relax(gen, node, goalNode, goal, base + cost, goal);
+      }
+    }
+    return null;
+  }
+
+  private void relax(int gen, int node, int next, int nextTile, int cost, int goal) {
+    PathFinder.SearchState s = state;
+    if (s.closed[next] == gen) return;
+    if ((s.seen[next] != gen) || (cost < s.g[next])) {
+      s.seen[next] = gen;
+      s.g[next] = cost;
+      s.parent[next] = node;
+      s.push(next, cost + finder.estimate(nextTile, goal));
+    }
+  }
+
+  /**
+   * The tiles of the nodes from the start to the goal node; an entrance on the start or the goal
+   * tile is only listed once
+   */
+  private int[] waypoints(int[] parent, int goalNode, int start, int goal) {
+    IntList path = new IntList();
+    for (int node = goalNode; node != NONE; node = parent[node]) {
+      int tile;
+      if (node < nodeTile.length) {
+        tile = nodeTile[node];
+      } else if (node == goalNode) {
+        tile = goal;
+      } else if (node > goalNode) {
+        tile = exitTile[node - goalNode - 1];
+      } else {
+        tile = start;
+      }
+      if ((path.size() == 0) || (path.get(path.size() - 1) != tile)) path.add(tile);
+    }
+    int[] tiles = path.toArray();
+    for (int i = 0, j = tiles.length - 1; i < j; i++, j--) {
+      int t = tiles[i];
+      tiles[i] = tiles[j];
+      tiles[j] = t;
+    }
+    return tiles;
+  }
+
+  /**
+   * Find the crossings out of the start into neighboring clusters
+   */
+  private void findExits(int start, int startCluster, int goal, int goalCluster) {
+    int n = finder.getNeighbors(start, neighbors);
+    for (int i = 0; i < n; i++) {
+      int b = neighbors[i];
+      int c = clusterOf(b);
+      int cost = finder.getCost(start, b);
+      if ((c == startCluster) || (cost < 0)) continue;
+      Cluster cluster = clusters[c];
+      if (exitCosts[exits].length < cluster.tiles.length) exitCosts[exits] = new int[cluster.tiles.length];
+      localCosts(b, cluster.tiles, false, c, exitCosts[exits]);
+      int toGoal = (c == goalCluster) ? finder.findCost(finder.getX(b), finder.getY(b), finder.getX(goal), finder.getY(goal),
+          clusterLeft(c), clusterTop(c), clusterRight(c), clusterBottom(c)) : PathFinder.NO_PATH;
+      exitTile[exits] = b;
+      exitCost[exits] = cost;
+      exitGoalCost[exits] = (toGoal == PathFinder.NO_PATH) ? NONE : toGoal;
+      exits++;
+    }
+  }
+
+  /**
+   * Whether a tile can be entered from any of its neighbors
+   */
+  private boolean isEnterable(int tile) {
+    int n = finder.getNeighbors(tile, neighbors2);
+    for (int i = 0; i < n; i++) {
+      if (finder.getCost(neighbors2[i], tile) >= 0) return true;
+    }
+    return false;
+  }
+
+  /**
+   * The costs of the shortest paths within a cluster from a tile to each of a set of tiles (or, if
+   * reverse, from each of the set to the tile)
+   */
+  private void localCosts(int tile, int[] targets, boolean reverse, int c, int[] out) {
+    finder.findCosts(tile, targets, targets.length, reverse, clusterLeft(c), clusterTop(c), clusterRight(c), clusterBottom(c), out);
+  }
+
+  /**
+   * Rebuild the dirty clusters: their transitions to all neighbors, and the abstract graph of
+   * every cluster whose transitions have changed
+   */
+  @SuppressWarnings("MethodWithMultipleLoops")
+  private void update() {
+    if (!anyDirty) return;
+    anyDirty = false;
+    boolean[] rebuild = new boolean[clusters.length];
+    for (int c = 0; c < clusters.length; c++) {
+      if (!dirty[c]) continue;
+      int col = c % clusterColumns;
+      int row = c / clusterColumns;
+      for (int r = Math.max(0, row - 1); r <= Math.min(clusterRows - 1, row + 1); r++) {
+        for (int k = Math.max(0, col - 1); k <= Math.min(clusterColumns - 1, col + 1); k++) {
+          int other = (r * clusterColumns) + k;
+          // The border with a dirty neighbor that comes first has been done from its side
+          if ((other == c) || (dirty[other] && (other < c))) continue;
+          long key = pairKey(c, other);
+          int[] old = transitions.get(key);
+          int[] now = findTransitions(Math.min(c, other), Math.max(c, other));
+          if (now.length == 0) {
+            transitions.remove(key);
+          } else {
+            transitions.put(key, now);
+          }
+          if (!Arrays.equals(old, now) && ((old != null) || (now.length > 0))) rebuild[other] = true;
+        }
+      }
+    }
+    for (int c = 0; c < clusters.length; c++) {
+      if (dirty[c]) rebuild[c] = true;
+      dirty[c] = false;
+    }
+    for (int c = 0; c < clusters.length; c++) {
+      if (rebuild[c]) buildCluster(c);
+    }
+    // Number the entrances
+    for (int c = 0; c < clusters.length; c++) {
+      nodeOffset[c + 1] = nodeOffset[c] + clusters[c].tiles.length;
+    }
+    nodeTile = new int[nodeOffset[clusters.length]];
+    for (int c = 0; c < clusters.length; c++) {
+      System.arraycopy(clusters[c].tiles, 0, nodeTile, nodeOffset[c], clusters[c].tiles.length);
+    }
+  }
+
+  private static long pairKey(int a, int b) {
+    return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+  }
+
+  /**
+   * Find the transitions between two clusters (lo < hi). Every pair of a border tile of lo and a
+   * neighbor in hi that can be crossed in at least one direction is visited, in row-major order. A
+   * pair joins the current run if it can be crossed in the same directions, and both its tiles
+   * connect (by a step in either direction) to tiles of the run on their side, so that any crossing
+   * of a run can be reached from any other; runs get a transition in their middle, or at both ends
+   * if they are long.
+   */
+  @SuppressWarnings({"MethodWithMultipleLoops", "OverlyComplexMethod"})
+  private int[] findTransitions(int lo, int hi) {
+    found.clear();
+    run.clear();
+    runTiles = 0;
+    runWays = 0;
+    int left = clusterLeft(lo);
+    int top = clusterTop(lo);
+    int right = clusterRight(lo);
+    int bottom = clusterBottom(lo);
+    for (int y = top; y < bottom; y++) {
+      for (int x = left; x < right; x++) {
+        // Only the tiles on the border of the cluster
+        if ((y != top) && (y != (bottom - 1)) && (x != left) && (x != (right - 1))) continue;
+        int a = (y * width) + x;
+        int n = finder.getNeighbors(a, neighbors);
+        for (int i = 0; i < n; i++) {
+          int b = neighbors[i];
+          if (clusterOf(b) != hi) continue;
+          int ways = ((finder.getCost(a, b) >= 0) ? LO_TO_HI : 0) | ((finder.getCost(b, a) >= 0) ? HI_TO_LO : 0);
+          // A one-way crossing out of a tile that cannot be entered can only start a path; see findExits
+          if ((ways == 0) || ((ways == LO_TO_HI) && !isEnterable(a)) || ((ways == HI_TO_LO) && !isEnterable(b))) continue;
+          if ((ways != runWays) || !joinsRun(a, b)) closeRun();
+          runWays = ways;
+          if ((run.size() == 0) || (run.get(run.size() - 2) != a)) runTiles++;
+          run.add(a);
+          run.add(b);
+        }
+      }
+    }
+    closeRun();
+    return found.toArray();
+  }
+
+  /**
+   * Whether a pair of tiles connects to the tiles of the current run on both sides
+   */
+  private boolean joinsRun(int a, int b) {
+    boolean mine = false;
+    boolean theirs = false;
+    for (int i = 0; (i < run.size()) && !(mine && theirs); i += 2) {
+      mine = mine || connects(a, run.get(i));
+      theirs = theirs || connects(b, run.get(i + 1));
+    }
+    return mine && theirs;
+  }
+
+  private boolean connects(int a, int b) {
+    if (a == b) return true;
+    int n = finder.getNeighbors(a, neighbors2);
+    for (int i = 0; i < n; i++) {
+      if (neighbors2[i] == b) return (finder.getCost(a, b) >= 0) && (finder.getCost(b, a) >= 0);
+    }
+    return false;
+  }
+
+  /**
+   * Add the transitions of the current run of crossings (pairs of tile and partner), and clear it
+   */
+  private void closeRun() {
+    int length = run.size() >> 1;
+    if (length == 0) return;
+    if (runTiles >= LONG_ENTRANCE) {
+      addTransition(run.get(0), run.get(1));
+      addTransition(run.get((length - 1) << 1), run.get(((length - 1) << 1) + 1));
+    } else {
+      int mid = (length >> 1) << 1;
+      addTransition(run.get(mid), run.get(mid + 1));
+    }
+    run.clear();
+    runTiles = 0;
+  }
+
+  private void addTransition(int a, int b) {
+    int ab = finder.getCost(a, b);
+    int ba = finder.getCost(b, a);
+    found.add(a);
+    found.add(b);
+    found.add((ab < 0) ? NONE : ab);
+    found.add((ba < 0) ? NONE : ba);
+  }
+
+  /**
+   * Rebuild the abstract graph of a cluster from the transitions to its neighbors
+   */
+  @SuppressWarnings({"MethodWithMultipleLoops", "OverlyComplexMethod", "OverlyLongMethod"})
+  private void buildCluster(int c) {
+    for (int tile : clusters[c].tiles) {
+      slotOfTile[tile] = NONE;
+    }
+    // The entrance tiles on this side of the transitions, and the transitions leaving them
+    IntList tiles = new IntList();
+    IntList from = new IntList();
+    IntList to = new IntList();
+    IntList cost = new IntList();
+    int col = c % clusterColumns;
+    int row = c / clusterColumns;
+    for (int r = Math.max(0, row - 1); r <= Math.min(clusterRows - 1, row + 1); r++) {
+      for (int k = Math.max(0, col - 1); k <= Math.min(clusterColumns - 1, col + 1); k++) {
+        int other = (r * clusterColumns) + k;
+        if (other == c) continue;
+        int[] t = transitions.get(pairKey(c, other));
+        if (t == null) continue;
+        boolean low = c < other;
+        for (int i = 0; i < t.length; i += 4) {
+          int mine = low ? t[i] : t[i + 1];
+          int theirs = low ? t[i + 1] : t[i];
+          int out = low ? t[i + 2] : t[i + 3];
+          if (slotOfTile[mine] == NONE) {
+            slotOfTile[mine] = tiles.size();
+            tiles.add(mine);
+          }
+          if (out != NONE) {
+            from.add(slotOfTile[mine]);
+            to.add(theirs);
+            cost.add(out);
+          }
+        }
+      }
+    }
+    int n = tiles.size();
+    int[] entrance = tiles.toArray();
+    int[] intra = new int[n * n];
+    int[] costs = new int[n];
+    for (int i = 0; i < n; i++) {
+      localCosts(entrance[i], entrance, false, c, costs);
+      System.arraycopy(costs, 0, intra, i * n, n);
+    }
+    int[] start = new int[n + 1];
+    for (int i = 0; i < from.size(); i++) {
+      start[from.get(i) + 1]++;
+    }
+    for (int i = 0; i < n; i++) {
+      start[i + 1] += start[i];
+    }
+    int[] fill = Arrays.copyOf(start, n);
+    int[] target = new int[from.size()];
+    int[] targetCost = new int[from.size()];
+    for (int i = 0; i < from.size(); i++) {
+      int k = fill[from.get(i)]++;
+      target[k] = to.get(i);
+      targetCost[k] = cost.get(i);
+    }
+    clusters[c] = new Cluster(entrance, intra, start, target, targetCost);
+  }
+
+  private int clusterOf(int tile) {
+    return ((finder.getY(tile) / clusterSize) * clusterColumns) + (finder.getX(tile) / clusterSize);
+  }
+
+  private int clusterLeft(int c) {
+    return (c % clusterColumns) * clusterSize;
+  }
+
+  private int clusterTop(int c) {
+    return (c / clusterColumns) * clusterSize;
+  }
+
+  private int clusterRight(int c) {
+    return Math.min(width, clusterLeft(c) + clusterSize);
+  }
+
+  private int clusterBottom(int c) {
+    return Math.min(height, clusterTop(c) + clusterSize);
+  }
+
+  /**
+   * A growable array of ints
+   */
+  private static final class IntList {
+    private int[] values = new int[16];
+    private int size;
+
+    void add(int v) {
+      if (size == values.length) values = Arrays.copyOf(values, size << 1);
+      values[size++] = v;
+    }
+
+    int get(int i) {
+      return values[i];
+    }
+
+    int size() {
+      return size;
+    }
+
+    void clear() {
+      size = 0;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.map;
+
+import android.support.annotation.Nullable;
+
+import com.micabytes.math.Hex;
+
+import java.util.Arrays;
+
+/**
+ * PathFinder finds shortest paths on the grid of a TileMap (square tiles, with or without diagonal
+ * moves) or a HexMap (hex tiles in rows offset as Hex.ODD_R, in either orientation). The cost of
+ * moving between tiles and the heuristic are pluggable.
+ * <p/>
+ * Tiles are identified by their index in the {@link TileGrid} (y * width + x), and paths are
+ * returned as arrays of tile indices. The A* search state (a binary heap of tile indices and
+ * per-tile arrays) is kept per thread and reused; it is reset by bumping a generation counter rather
+ * than by clearing the arrays, so a search only allocates its result.
+ */
+@SuppressWarnings("unused")
+public final class PathFinder {
+  public static final int SQUARE = 0;
+  public static final int SQUARE_DIAGONAL = 1;
+  public static final int HEX = 2;
+  /**
+   * Returned by the cost function for tiles that cannot be entered, and by the search if there is
+   * no path
+   */
+  public static final int NO_PATH = -1;
+  private static final int[] SQUARE_DX = {1, 0, -1, 0, 1, -1, -1, 1};
+  private static final int[] SQUARE_DY = {0, -1, 0, 1, -1, -1, 1, 1};
+  // Neighbors in offset coordinates (odd rows shifted right), for even and for odd rows
+  private static final int[] HEX_EVEN_DX = {1, 0, -1, -1, -1, 0};
+  private static final int[] HEX_EVEN_DY = {0, -1, -1, 0, 1, 1};
+  private static final int[] HEX_ODD_DX = {1, 1, 0, -1, 0, 1};
+  private static final int[] HEX_ODD_DY = {0, -1, -1, 0, 1, 1};
+  private static final ThreadLocal<SearchState> STATE = new ThreadLocal<SearchState>() {
+    @Override
+    protected SearchState initialValue() {
+      return new SearchState();
+    }
+  };
+
+  /**
+   * The cost of moving from a tile to a neighboring tile
+   */
+  public interface Cost {
+    /**
+     * @return The cost (at least 0), or {@link #NO_PATH} if the move is not possible
+     */
+    int cost(int fromX, int fromY, int toX, int toY);
+  }
+
+  /**
+   * An estimate of the cost from a tile to the goal. A* only finds shortest paths if the estimate
+   * never exceeds the actual cost.
+   */
+  public interface Heuristic {
+    int estimate(int x, int y, int goalX, int goalY);
+  }
+
+  private final int width;
+  private final int height;
+  private final int topology;
+  private final Cost cost;
+  private final int minCost;
+  @Nullable private volatile Heuristic heuristic;
+
+  /**
+   * @param w       The width of the map, in tiles
+   * @param h       The height of the map, in tiles
+   * @param type    SQUARE, SQUARE_DIAGONAL or HEX
+   * @param c       The cost of the moves
+   * @param minStep The lowest cost of a move; the default heuristic is the number of moves to the
+   *                goal times this
+   */
+  public PathFinder(int w, int h, int type, Cost c, int minStep) {
+    if ((type < SQUARE) || (type > HEX)) throw new IllegalArgumentException("Unknown topology " + type);
+    width = w;
+    height = h;
+    topology = type;
+    cost = c;
+    minCost = minStep;
+  }
+
+  /**
+   * A PathFinder for the grid of a TileMap (moves to the four orthogonal neighbors)
+   */
+  public static PathFinder forTileMap(TileMap map, Cost c, int minStep) {
+    TileGrid grid = map.getTileGrid();
+    return new PathFinder(grid.getWidth(), grid.getHeight(), SQUARE, c, minStep);
+  }
+
+  /**
+   * A PathFinder for the grid of a HexMap
+   */
+  public static PathFinder forHexMap(HexMap map, Cost c, int minStep) {
+    TileGrid grid = map.getTileGrid();
+    return new PathFinder(grid.getWidth(), grid.getHeight(), HEX, c, minStep);
+  }
+
+  /**
+   * Replace the default heuristic (null restores it)
+   */
+  public void setHeuristic(@Nullable Heuristic h) {
+    heuristic = h;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getTopology() {
+    return topology;
+  }
+
+  public int getIndex(int x, int y) {
+    return (y * width) + x;
+  }
+
+  public int getX(int index) {
+    return index % width;
+  }
+
+  public int getY(int index) {
+    return index / width;
+  }
+
+  /**
+   * Find the shortest path between two tiles
+   *
+   * @return The tile indices of the path, from start to goal (inclusive), or null if there is none
+   */
+  @Nullable
+  public int[] findPath(int startX, int startY, int goalX, int goalY) {
+    return findPath(startX, startY, goalX, goalY, 0, 0, width, height);
+  }
+
+  /**
+   * Find the shortest path between two tiles that stays within the tiles from left/top (inclusive)
+   * to right/bottom (exclusive)
+   *
+   * @return The tile indices of the path, from start to goal (inclusive), or null if there is none
+   */
+  @Nullable
+  public int[] findPath(int startX, int startY, int goalX, int goalY, int left, int top, int right, int bottom) {
+    SearchState s = STATE.get();
+    if (search(startX, startY, goalX, goalY, left, top, right, bottom, s) == NO_PATH) return null;
+    int goal = getIndex(goalX, goalY);
+    int length = 0;
+    for (int node = goal; node != NO_PATH; node = s.parent[node]) {
+      length++;
+    }
+    int[] path = new int[length];
+    for (int node = goal; node != NO_PATH; node = s.parent[node]) {
+      path[--length] = node;
+    }
+    return path;
+  }
+
+  /**
+   * The cost of the shortest path between two tiles, without building the path
+   *
+   * @return The cost, or {@link #NO_PATH} if there is no path
+   */
+  public int findCost(int startX, int startY, int goalX, int goalY, int left, int top, int right, int bottom) {
+    return search(startX, startY, goalX, goalY, left, top, right, bottom, STATE.get());
+  }
+
+  /**
+   * The neighbors of a tile (within the map)
+   *
+   * @param out Holds at least 8 tile indices
+   * @return The number of neighbors
+   */
+  int getNeighbors(int index, int[] out) {
+    int x = index % width;
+    int y = index / width;
+    int[] dx;
+    int[] dy;
+    int n;
+    if (topology == HEX) {
+      boolean odd = (y & 1) == 1;
+      dx = odd ? HEX_ODD_DX : HEX_EVEN_DX;
+      dy = odd ? HEX_ODD_DY : HEX_EVEN_DY;
+      n = Hex.DIRECTIONS;
+    } else {
+      dx = SQUARE_DX;
+      dy = SQUARE_DY;
+      n = (topology == SQUARE) ? 4 : 8;
+    }
+    int count = 0;
+    for (int d = 0; d < n; d++) {
+      int nx = x + dx[d];
+      int ny = y + dy[d];
+      if ((nx >= 0) && (nx < width) && (ny >= 0) && (ny < height)) out[count++] = (ny * width) + nx;
+    }
+    return count;
+  }
+
+  /**
+   * The cost of a move between two neighboring tiles
+   */
+  int getCost(int from, int to) {
+    return cost.cost(from % width, from / width, to % width, to / width);
+  }
+
+  /**
+   * The heuristic estimate of the cost between two tiles
+   */
+  int estimate(int from, int to) {
+    return estimate(heuristic, from % width, from / width, to % width, to / width);
+  }
+
+  /**
+   * The costs of the shortest paths from a tile to each of a set of tiles (or, if reverse, from each
+   * of the set to the tile), within the tiles from left/top (inclusive) to right/bottom (exclusive).
+   * A single Dijkstra search, which stops once all the targets are reached.
+   *
+   * @param out Set to the cost for each target, or NO_PATH
+   */
+  @SuppressWarnings({"MethodWithMultipleLoops", "MethodWithTooManyParameters"})
+  void findCosts(int source, int[] targets, int count, boolean reverse, int left, int top, int right, int bottom, int[] out) {
+    SearchState s = STATE.get();
+    int gen = s.begin(width * height);
+    int[] g = s.g;
+    int[] seen = s.seen;
+    int[] closed = s.closed;
+    int[] next = s.neighbors;
+    for (int i = 0; i < count; i++) {
+      out[i] = NO_PATH;
+    }
+    int remaining = count;
+    seen[source] = gen;
+    g[source] = 0;
+    s.push(source, 0);
+    while ((s.size > 0) && (remaining > 0)) {
+      int node = s.pop();
+      if (closed[node] == gen) continue;
+      closed[node] = gen;
+      for (int i = 0; i < count; i++) {
+        if (targets[i] == node) {
+          out[i] = g[node];
+          remaining--;
+        }
+      }
+      int n = getNeighbors(node, next);
+      for (int d = 0; d < n; d++) {
+        int m = next[d];
+        int mx = m % width;
+        int my = m / width;
+        if ((mx < left) || (mx >= right) || (my < top) || (my >= bottom) || (closed[m] == gen)) continue;
+        int c = reverse ? getCost(m, node) : getCost(node, m);
+        if (c < 0) continue;
+        int ng = g[node] + c;
+        if ((seen[m] != gen) || (ng < g[m])) {
+          seen[m] = gen;
+          g[m] = ng;
+          s.push(m, ng);
+        }
+      }
+    }
+  }
+
+  /**
+   * The cost of a path found by {@link #findPath(int, int, int, int)} (the sum of its moves)
+   *
+   * @return The cost, or {@link #NO_PATH} if a move is not possible
+   */
+  public int getPathCost(int[] path) {
+    int total = 0;
+    for (int i = 1; i < path.length; i++) {
+      int c = cost.cost(getX(path[i - 1]), getY(path[i - 1]), getX(path[i]), getY(path[i]));
+      if (c < 0) return NO_PATH;
+      total += c;
+    }
+    return total;
+  }
+
+  @SuppressWarnings({"MethodWithMultipleLoops", "OverlyComplexMethod", "OverlyLongMethod", "MethodWithTooManyParameters"})
+  private int search(int startX, int startY, int goalX, int goalY, int boundLeft, int boundTop, int boundRight, int boundBottom, SearchState s) {
+    int left = Math.max(0, boundLeft);
+    int top = Math.max(0, boundTop);
+    int right = Math.min(width, boundRight);
+    int bottom = Math.min(height, boundBottom);
+    if ((startX < left) || (startX >= right) || (startY < top) || (startY >= bottom)) return NO_PATH;
+    if ((goalX < left) || (goalX >= right) || (goalY < top) || (goalY >= bottom)) return NO_PATH;
+    int gen = s.begin(width * height);
+    int[] g = s.g;
+    int[] parent = s.parent;
+    int[] seen = s.seen;
+    int[] closed = s.closed;
+    Heuristic h = heuristic;
+    int start = getIndex(startX, startY);
+    int goal = getIndex(goalX, goalY);
+    seen[start] = gen;
+    g[start] = 0;
+    parent[start] = NO_PATH;
+    s.push(start, estimate(h, startX, startY, goalX, goalY));
+    while (s.size > 0) {
+      int node = s.pop();
+      // The heap may hold stale entries of tiles that were reached again more cheaply
+      if (closed[node] == gen) continue;
+      closed[node] = gen;
+      if (node == goal) return g[node];
+      int x = node % width;
+      int y = node / width;
+      int[] dx;
+      int[] dy;
+      int n;
+      if (topology == HEX) {
+        boolean odd = (y & 1) == 1;
+        dx = odd ? HEX_ODD_DX : HEX_EVEN_DX;
+        dy = odd ? HEX_ODD_DY : HEX_EVEN_DY;
+        n = Hex.DIRECTIONS;
+      } else {
+        dx = SQUARE_DX;
+        dy = SQUARE_DY;
+        n = (topology == SQUARE) ? 4 : 8;
+      }
+      for (int d = 0; d < n; d++) {
+        int nx = x + dx[d];
+        int ny = y + dy[d];
+        if ((nx < left) || (nx >= right) || (ny < top) || (ny >= bottom)) continue;
+        int next = (ny * width) + nx;
+        if (closed[next] == gen) continue;
+        int c = cost.cost(x, y, nx, ny);
+        if (c < 0) continue;
+        int ng = g[node] + c;
+        if ((seen[next] != gen) || (ng < g[next])) {
+          seen[next] = gen;
+          g[next] = ng;
+          parent[next] = node;
+          s.push(next, ng + estimate(h, nx, ny, goalX, goalY));
+        }
+      }
+    }
+    return NO_PATH;
+  }
+
+  private int estimate(@Nullable Heuristic h, int x, int y, int goalX, int goalY) {
+    if (h != null) return h.estimate(x, y, goalX, goalY);
+    int dx = Math.abs(goalX - x);
+    int dy = Math.abs(goalY - y);
+    switch (topology) {
+      case SQUARE:
+        return (dx + dy) * minCost;
+      case SQUARE_DIAGONAL:
+        return Math.max(dx, dy) * minCost;
+      default:
+        return Hex.distance(Hex.fromOffset(x, y, Hex.ODD_R), Hex.fromOffset(goalX, goalY, Hex.ODD_R)) * minCost;
+    }
+  }
+
+  /**
+   * The state of a search: per-node arrays (tiles here, entrances in {@link HierarchicalPathFinder}),
+   * valid for the nodes whose seen (closed) entry equals the current generation, and the open list
+   * as a binary min-heap of nodes keyed by their estimated total cost.
+   */
+  static final class SearchState {
+    private static final int INITIAL_HEAP_SIZE = 256;
+    int[] g = new int[0];
+    int[] parent = new int[0];
+    int[] seen = new int[0];
+    int[] closed = new int[0];
+    final int[] neighbors = new int[8];
+    private int generation;
+    private int[] heapNodes = new int[INITIAL_HEAP_SIZE];
+    private int[] heapKeys = new int[INITIAL_HEAP_SIZE];
+    int size;
+
+    /**
+     * Start a search over a map of the given number of tiles
+     *
+     * @return The generation of the search
+     */
+    int begin(int tiles) {
+      size = 0;
+      if (g.length < tiles) {
+        g = new int[tiles];
+        parent = new int[tiles];
+        seen = new int[tiles];
+        closed = new int[tiles];
+        generation = 0;
+      }
+      generation++;
+      if (generation == Integer.MAX_VALUE) {
+        Arrays.fill(seen, 0);
+        Arrays.fill(closed, 0);
+        generation = 1;
+      }
+      return generation;
+    }
+
+    void push(int node, int key) {
+      if (size == heapNodes.length) {
+        heapNodes = Arrays.copyOf(heapNodes, size << 1);
+        heapKeys = Arrays.copyOf(heapKeys, size << 1);
+      }
+      int i = size++;
+      while (i > 0) {
+        int up = (i - 1) >> 1;
+        if (heapKeys[up] <= key) break;
+        heapNodes[i] = heapNodes[up];
+        heapKeys[i] = heapKeys[up];
+        i = up;
+      }
+      heapNodes[i] = node;
+      heapKeys[i] = key;
+    }
+
+    int pop() {
+      int top = heapNodes[0];
+      int node = heapNodes[--size];
+      int key = heapKeys[size];
+      int i = 0;
+      int half = size >> 1;
+      while (i < half) {
+        int child = (i << 1) + 1;
+        if (((child + 1) < size) && (heapKeys[child + 1] < heapKeys[child])) child++;
+        if (key <= heapKeys[child]) break;
+        heapNodes[i] = heapNodes[child];
+        heapKeys[i] = heapKeys[child];
+        i = child;
+      }
+      heapNodes[i] = node;
+      heapKeys[i] = key;
+      return top;
+    }
+  }
+
+}
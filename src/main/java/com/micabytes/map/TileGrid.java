@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.map;
+
+import android.support.annotation.Nullable;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * TileGrid is the backing store of TileMap and HexMap. The map is a grid of tile ids in row-major
+ * order (index = y * width + x), which refer to a palette of {@link TileMapZone}s; tile id 0
+ * ({@link #EMPTY}) is an empty tile. Additional per-tile data (e.g., overlays or simulation state)
+ * can be held in layers.
+ * <p/>
+ * {@link ArrayTileGrid} holds the map in memory as flat int arrays, which rendering and simulation
+ * code can iterate directly; {@link ChunkedTileGrid} pages it in from a map file. Code that should
+ * work with both reads rows with {@link #getRow(int, int, int, int[])}.
+ */
+@SuppressWarnings("unused")
+public abstract class TileGrid {
+  public static final int EMPTY = 0;
+  protected final int width;
+  protected final int height;
+  private TileMapZone[] palette;
+
+  /**
+   * @param w     The width of the map in tiles
+   * @param h     The height of the map in tiles
+   * @param zones The palette of zones; tile id n refers to zones[n]. Element 0 is ignored.
+   */
+  protected TileGrid(int w, int h, TileMapZone[] zones) {
+    width = w;
+    height = h;
+    palette = zones.clone();
+    if (palette.length > 0) palette[EMPTY] = null;
+  }
+
+  /**
+   * Creates a TileGrid from a map of zones (indexed [x][y], as used by TileMap.setTileMap and
+   * HexMap.setHexMap). Every distinct zone object becomes an entry in the palette, so maps that
+   * share zone objects between tiles are stored compactly.
+   */
+  public static ArrayTileGrid fromZones(TileMapZone[][] map) {
+    int w = map.length;
+    int h = map[0].length;
+    Map<TileMapZone, Integer> index = new IdentityHashMap<>();
+    TileMapZone[] zones = new TileMapZone[16];
+    int n = 1;
+    int[] values = new int[w * h];
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        TileMapZone zone = map[x][y];
+        if (zone == null) continue;
+        Integer id = index.get(zone);
+        if (id == null) {
+          id = n++;
+          index.put(zone, id);
+          if (id >= zones.length) {
+            TileMapZone[] grown = new TileMapZone[zones.length << 1];
+            System.arraycopy(zones, 0, grown, 0, zones.length);
+            zones = grown;
+          }
+          zones[id] = zone;
+        }
+        values[(y * w) + x] = id;
+      }
+    }
+    TileMapZone[] used = new TileMapZone[n];
+    System.arraycopy(zones, 0, used, 0, n);
+    return new ArrayTileGrid(w, h, used, values);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns the index of a tile in row-major order
+   */
+  public int getIndex(int x, int y) {
+    return (y * width) + x;
+  }
+
+  public boolean contains(int x, int y) {
+    return (x >= 0) && (y >= 0) && (x < width) && (y < height);
+  }
+
+  public abstract int get(int x, int y);
+
+  public abstract void set(int x, int y, int id);
+
+  /**
+   * Copies the tile ids of part of a row
+   *
+   * @param y   The row
+   * @param x0  The first column (inclusive)
+   * @param x1  The last column (exclusive)
+   * @param out Receives the ids of the tiles x0 to x1 - 1, starting at out[0]
+   */
+  public abstract void getRow(int y, int x0, int x1, int[] out);
+
+  /**
+   * Called with the area of the map (in tiles) that is about to be drawn, so that subclasses can
+   * page it in.
+   */
+  public void prefetch(int x0, int y0, int x1, int y1) {
+    // NOOP
+  }
+
+  /**
+   * Returns the zone of a tile, or null if it is empty
+   */
+  @Nullable
+  public TileMapZone getZone(int x, int y) {
+    return palette[get(x, y)];
+  }
+
+  /**
+   * Returns the zone of a tile id, or null for {@link #EMPTY}
+   */
+  @Nullable
+  public TileMapZone getPaletteZone(int id) {
+    return palette[id];
+  }
+
+  public int getPaletteSize() {
+    return palette.length;
+  }
+
+  /**
+   * Adds a zone to the palette
+   *
+   * @return The tile id of the zone
+   */
+  public int addPaletteZone(TileMapZone zone) {
+    TileMapZone[] grown = new TileMapZone[palette.length + 1];
+    System.arraycopy(palette, 0, grown, 0, palette.length);
+    grown[palette.length] = zone;
+    palette = grown;
+    return palette.length - 1;
+  }
+
+  /**
+   * Returns the first zone in the palette, or null if the palette is empty
+   */
+  @Nullable
+  public TileMapZone getFirstZone() {
+    for (TileMapZone zone : palette) {
+      if (zone != null) return zone;
+    }
+    return null;
+  }
+
+  public abstract int getLayerCount();
+
+  public abstract int getLayer(int layer, int x, int y);
+
+  public abstract void setLayer(int layer, int x, int y, int value);
+
+}
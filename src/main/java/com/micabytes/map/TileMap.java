@@ -17,31 +17,148 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.support.annotation.Nullable;
 
 import com.micabytes.gfx.SurfaceRenderer;
 import com.micabytes.util.GameLog;
 
 /**
  * TileMap superclass
+ * <p/>
+ * The base layer can be pre-rendered in chunks (see {@link #setChunkCacheSize(long)}); with the
+ * chunk cache, changed or animated zones are only redrawn when they are marked dirty.
  */
 @SuppressWarnings({"unused", "AbstractClassNeverImplemented"})
 public abstract class TileMap {
-  private static int mapWidth;
-  private static int mapHeight;
-  private TileMapZone[][] zones;
-  private Rect tileRect;
-  private final Point viewPortOrigin = new Point();
-  private final Point viewPortSize = new Point();
-
-  @SuppressWarnings("AssignmentToStaticFieldFromInstanceMethod")
+  private int mapWidth;
+  private int mapHeight;
+  private TileGrid grid;
+  private Rect tileRect = new Rect();
+  // The tile ids of the row being drawn
+  private int[] rowIds = new int[0];
+  private final Point baseOrigin = new Point();
+  private final Rect baseClip = new Rect();
+  private final Rect baseWindow = new Rect();
+  private final Rect dirtyArea = new Rect();
+  private final Paint tilePaint = new Paint();
+  private final Canvas canvas = new Canvas();
+  private final Rect destRect = new Rect();
+  private final Rect dirtyRect = new Rect();
+  // The area of the map (in pixels) that has changed since the last frame
+  private final Rect dirtyRegion = new Rect();
+  @Nullable private volatile SurfaceRenderer renderer;
+  // The pre-rendered base layer (null if disabled)
+  @Nullable private ChunkBitmapCache chunkCache;
+
+  protected TileMap() {
+    tilePaint.setAntiAlias(true);
+    tilePaint.setFilterBitmap(true);
+    tilePaint.setDither(true);
+  }
+
   public void setTileMap(TileMapZone[][] map) {
-    zones = new TileMapZone[map.length][map[0].length];
-    for (int i = 0; i < map.length; i++) {
-      System.arraycopy(map[i], 0, zones[i], 0, map[i].length);
+    setTileMap(TileGrid.fromZones(map));
+  }
+
+  public void setTileMap(TileGrid map) {
+    grid = map;
+    mapHeight = map.getHeight();
+    mapWidth = map.getWidth();
+    TileMapZone zone = map.getFirstZone();
+    tileRect = (zone == null) ? new Rect() : new Rect(0, 0, zone.getWidth(), zone.getHeight());
+    if (chunkCache != null) chunkCache.setMapSize(getRenderWidth(), getRenderHeight());
+  }
+
+  public TileGrid getTileGrid() {
+    return grid;
+  }
+
+  /**
+   * Set the size of the cache of pre-rendered chunks of the base layer (e.g., a tenth of
+   * Runtime.maxMemory()). The cache is off (0) by default, and the base layer is drawn tile by tile
+   * every frame. With the cache, tiles are only redrawn when they are marked dirty: call
+   * {@link #markDirty(int, int)} (or {@link #invalidate()}) whenever a zone changes or animates.
+   */
+  public final void setChunkCacheSize(long bytes) {
+    if (bytes <= 0L) {
+      chunkCache = null;
+    } else if (chunkCache == null) {
+      chunkCache = new ChunkBitmapCache(new ChunkBitmapCache.RegionPainter() {
+        @Override
+        public void drawRegion(Canvas canvas, int left, int top, int right, int bottom, float scale) {
+          drawTiles(canvas, left, top, right, bottom, scale,
+              SurfaceRenderer.toScreen(left, scale), SurfaceRenderer.toScreen(top, scale));
+        }
+      }, bytes);
+      if (grid != null) chunkCache.setMapSize(getRenderWidth(), getRenderHeight());
+    } else {
+      chunkCache.setMaxSize(bytes);
+    }
+  }
+
+  /**
+   * Set the tile id of a tile, and redraw it
+   */
+  public void setTile(int i, int j, int id) {
+    if (grid == null) return;
+    grid.set(i, j, id);
+    markDirty(i, j);
+  }
+
+  /**
+   * Mark a tile as changed (e.g., its zone, or a unit on it), so that it is redrawn in the next
+   * frame
+   */
+  public void markDirty(int i, int j) {
+    if (grid == null) return;
+    markDirtyArea(i * tileRect.width(), j * tileRect.height(), (i + 1) * tileRect.width(), (j + 1) * tileRect.height());
+  }
+
+  /**
+   * Mark the tiles from left/top (inclusive) to right/bottom (exclusive) as changed
+   */
+  public void markDirty(Rect tiles) {
+    if (grid == null) return;
+    markDirtyArea(tiles.left * tileRect.width(), tiles.top * tileRect.height(), tiles.right * tileRect.width(), tiles.bottom * tileRect.height());
+  }
+
+  /**
+   * Redraw the whole map
+   */
+  public void invalidate() {
+    if (grid == null) return;
+    if (chunkCache != null) chunkCache.invalidateAll();
+    markDirtyArea(0, 0, getRenderWidth(), getRenderHeight());
+  }
+
+  private void markDirtyArea(int left, int top, int right, int bottom) {
+    synchronized (this) {
+      dirtyRect.set(left, top, right, bottom);
+      if (chunkCache != null) chunkCache.invalidate(dirtyRect);
+      dirtyRegion.union(dirtyRect);
     }
-    mapHeight = map[0].length;
-    mapWidth = map.length;
-    tileRect = new Rect(0, 0, map[0][0].getWidth(), map[0][0].getHeight());
+    SurfaceRenderer r = renderer;
+    if (r != null) r.requestRender();
+  }
+
+  /**
+   * Set the renderer that draws the map; it is asked for a frame when tiles are marked dirty.
+   * Called by the map surface renderers.
+   */
+  public void setRenderer(@Nullable SurfaceRenderer r) {
+    renderer = r;
+  }
+
+  /**
+   * Get (and clear) the area of the map, in pixels, that has changed since the last call
+   *
+   * @return false if nothing has changed
+   */
+  public synchronized boolean takeDirtyRegion(Rect out) {
+    if (dirtyRegion.isEmpty()) return false;
+    out.set(dirtyRegion);
+    dirtyRegion.setEmpty();
+    return true;
   }
 
   public int getRenderHeight() {
@@ -60,26 +177,40 @@ public abstract class TileMap {
     return tileRect.width();
   }
 
-  @SuppressWarnings({"MethodWithMultipleLoops", "NumericCastThatLosesPrecision"})
   public void drawBase(Context context, SurfaceRenderer.ViewPort p) {
     if (p.getBitmap() == null) {
       GameLog.e("TileMap", "Viewport bitmap is null in TileMap");
       return;
     }
-    Canvas canvas = new Canvas(p.getBitmap());
-    Paint paint = new Paint();
-    paint.setAntiAlias(true);
-    paint.setFilterBitmap(true);
-    paint.setDither(true);
-    float scaleFactor = p.getZoom();
+    // Changes not yet passed on by the renderer (see TileMapSurfaceRenderer.prepareFrame)
+    if (takeDirtyRegion(dirtyArea)) p.markDirty(dirtyArea);
+    // Only the part of the viewport exposed by a pan (if any) needs to be drawn
+    p.getBaseClip(baseClip);
+    if (baseClip.isEmpty()) return;
+    p.getBaseWindow(baseWindow);
+    p.getBaseOrigin(baseOrigin);
+    float scaleFactor = p.getBaseZoom();
+    // No map yet, or no tile to take the size from
+    if ((grid == null) || tileRect.isEmpty()) return;
+    canvas.setBitmap(p.getBitmap());
+    canvas.save();
+    canvas.clipRect(baseClip);
+    if (chunkCache != null) {
+      chunkCache.draw(canvas, baseWindow, scaleFactor, baseOrigin.x, baseOrigin.y);
+    } else {
+      drawTiles(canvas, baseWindow.left, baseWindow.top, baseWindow.right, baseWindow.bottom, scaleFactor, baseOrigin.x, baseOrigin.y);
+    }
+    canvas.restore();
+    canvas.setBitmap(null);
+  }
+
+  /**
+   * Draw the tiles in a window of the map. A point x, y of the map is drawn at
+   * SurfaceRenderer.toScreen(x, scaleFactor) - originX, SurfaceRenderer.toScreen(y, scaleFactor) - originY.
+   */
+  @SuppressWarnings("MethodWithMultipleLoops")
+  private void drawTiles(Canvas canvas, int windowLeft, int windowTop, int windowRight, int windowBottom, float scaleFactor, int originX, int originY) {
     int tileSize = tileRect.width();
-    p.getOrigin(viewPortOrigin);
-    p.getSize(viewPortSize);
-    int windowLeft = viewPortOrigin.x;
-    int windowTop = viewPortOrigin.y;
-    int windowRight = viewPortOrigin.x + viewPortSize.x;
-    int windowBottom = viewPortOrigin.y + viewPortSize.y;
-    Rect destRect = new Rect();
     // Clip tiles not in view
     int iMn = windowLeft / tileSize;
     if (iMn < 0) iMn = 0;
@@ -89,15 +220,20 @@ public abstract class TileMap {
     if (iMx >= mapWidth) iMx = mapWidth;
     int jMx = (windowBottom / tileSize) + 1;
     if (jMx >= mapHeight) jMx = mapHeight;
-    // Draw Tiles
-    for (int i = iMn; i < iMx; i++) {
-      for (int j = jMn; j < jMx; j++) {
-        if (zones[i][j] != null) {
-          destRect.left = (int) (((i * tileSize) - windowLeft) / scaleFactor);
-          destRect.top = (int) (((j * tileSize) - windowTop) / scaleFactor);
-          destRect.right = (int) ((((i * tileSize) + tileSize) - windowLeft) / scaleFactor);
-          destRect.bottom = (int) ((((j * tileSize) + tileSize) - windowTop) / scaleFactor);
-          zones[i][j].drawBase(canvas, tileRect, destRect, paint);
+    // Draw Tiles, row by row along the tile id array, from pre-scaled tiles when zoomed out
+    int level = TileMapZone.getMipmapLevel(scaleFactor);
+    grid.prefetch(iMn, jMn, iMx, jMx);
+    if (rowIds.length < (iMx - iMn)) rowIds = new int[iMx - iMn];
+    for (int j = jMn; j < jMx; j++) {
+      grid.getRow(j, iMn, iMx, rowIds);
+      for (int i = iMn; i < iMx; i++) {
+        int id = rowIds[i - iMn];
+        if (id != TileGrid.EMPTY) {
+          destRect.left = SurfaceRenderer.toScreen(i * tileSize, scaleFactor) - originX;
+          destRect.top = SurfaceRenderer.toScreen(j * tileSize, scaleFactor) - originY;
+          destRect.right = SurfaceRenderer.toScreen((i * tileSize) + tileSize, scaleFactor) - originX;
+          destRect.bottom = SurfaceRenderer.toScreen((j * tileSize) + tileSize, scaleFactor) - originY;
+          grid.getPaletteZone(id).drawBase(canvas, tileRect, destRect, tilePaint, level);
         }
       }
     }
@@ -12,38 +12,145 @@
  */
 package com.micabytes.map;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.support.annotation.Nullable;
 
 import com.micabytes.gfx.ImageHandler;
+import com.micabytes.gfx.TextureAtlas;
+
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Zone superclass for TileMap and HexMap
  */
 public class TileMapZone {
+  /**
+   * The smallest pre-scaled version of a tile is 1 / (1 << MAX_MIPMAP_LEVEL) of its size
+   */
+  public static final int MAX_MIPMAP_LEVEL = ImageHandler.MAX_MIPMAP_LEVEL;
+  // Whether the subclasses override drawBase(Canvas, Rect, Rect, Paint), by class
+  private static final Map<Class<?>, Boolean> DRAWS_OTHER = new HashMap<>();
   int value;
+  // The atlas the tile image was last looked up in, and its region there
+  @Nullable private TextureAtlas atlas;
+  @Nullable private Bitmap atlasSheet;
+  private int atlasRegion = TextureAtlas.NOT_FOUND;
+  private final Rect atlasRect = new Rect();
+  // The tileRect scaled to a mipmap level
+  private final Rect mipmapRect = new Rect();
+  // Whether drawBase(Canvas, Rect, Rect, Paint) draws the tile image, so mipmaps of it can be used
+  private final boolean drawsImage = !overridesDrawBase(getClass());
+
+  /**
+   * Whether a subclass overrides drawBase(Canvas, Rect, Rect, Paint), i.e., draws something other
+   * than the tile image
+   */
+  private static boolean overridesDrawBase(Class<?> type) {
+    synchronized (DRAWS_OTHER) {
+      Boolean known = DRAWS_OTHER.get(type);
+      if (known == null) {
+        try {
+          known = type.getMethod("drawBase", Canvas.class, Rect.class, Rect.class, Paint.class).getDeclaringClass() != TileMapZone.class;
+        } catch (NoSuchMethodException ignored) {
+          known = Boolean.FALSE;
+        }
+        DRAWS_OTHER.put(type, known);
+      }
+      return known;
+    }
+  }
+
+  /**
+   * Look up the tile image in the current atlas of the ImageHandler
+   *
+   * @return true if the tile is drawn from the atlas
+   */
+  private boolean inAtlas() {
+    TextureAtlas current = ImageHandler.getAtlas();
+    if (current != atlas) {
+      atlas = current;
+      atlasRegion = (current == null) ? TextureAtlas.NOT_FOUND : current.indexOf(value);
+      if (atlasRegion == TextureAtlas.NOT_FOUND) {
+        atlasSheet = null;
+      } else {
+        atlasSheet = current.getSheet(atlasRegion);
+        current.getRect(atlasRegion, atlasRect);
+      }
+    }
+    return atlasSheet != null;
+  }
+
+  /**
+   * Returns the mipmap level to draw tiles with at a scale (the number of map pixels per screen
+   * pixel): the smallest pre-scaled version that is still at least as large as the tile on screen.
+   */
+  public static int getMipmapLevel(float scale) {
+    int level = 0;
+    while ((level < MAX_MIPMAP_LEVEL) && ((1 << (level + 1)) <= scale)) {
+      level++;
+    }
+    return level;
+  }
 
   /**
    * Get the width of a tile
    */
   public int getWidth() {
-    return ImageHandler.get(value).getWidth();
+    return inAtlas() ? atlasRect.width() : ImageHandler.get(value).getWidth();
   }
 
   /**
    * Get the height of a tile
    */
   public int getHeight() {
-    return ImageHandler.get(value).getHeight();
+    return inAtlas() ? atlasRect.height() : ImageHandler.get(value).getHeight();
   }
 
   /**
-   * Draw the base bitmap of the tile on a canvas
+   * Draw the base bitmap of the tile on a canvas. If the tile image is in the atlas, it is drawn
+   * from there (and tileRect is ignored).
    */
   public void drawBase(Canvas canvas, Rect tileRect, Rect destRect, Paint paint) {
-    canvas.drawBitmap(ImageHandler.get(value), tileRect, destRect, paint);
+    if (inAtlas()) {
+      canvas.drawBitmap(atlasSheet, atlasRect, destRect, paint);
+    } else {
+      canvas.drawBitmap(ImageHandler.get(value), tileRect, destRect, paint);
+    }
   }
 
+  /**
+   * Draw the base bitmap of the tile on a canvas, from the pre-scaled version of the given mipmap
+   * level (see {@link #getMipmapLevel(float)}). The mipmaps are those of the tile image, and are
+   * shared by all zones with the same image (see {@link ImageHandler#getMipmap(int, int)}); the
+   * part drawn is tileRect, scaled to the level, as for level 0.
+   * <p/>
+   * Level 0, and every level of subclasses that override
+   * {@link #drawBase(Canvas, Rect, Rect, Paint)}, draws with that method; such subclasses can
+   * override this as well to draw pre-scaled versions of their own.
+   */
+  public void drawBase(Canvas canvas, Rect tileRect, Rect destRect, Paint paint, int level) {
+    if ((level <= 0) || !drawsImage) {
+      drawBase(canvas, tileRect, destRect, paint);
+      return;
+    }
+    int l = Math.min(level, MAX_MIPMAP_LEVEL);
+    if (inAtlas()) {
+      canvas.drawBitmap(atlas.getMipmap(atlasRegion, l), null, destRect, paint);
+      return;
+    }
+    Bitmap mipmap = ImageHandler.getMipmap(value, l);
+    if (tileRect == null) {
+      canvas.drawBitmap(mipmap, null, destRect, paint);
+      return;
+    }
+    mipmapRect.set(tileRect.left >> l, tileRect.top >> l,
+        Math.min(mipmap.getWidth(), Math.max((tileRect.left >> l) + 1, tileRect.right >> l)),
+        Math.min(mipmap.getHeight(), Math.max((tileRect.top >> l) + 1, tileRect.bottom >> l)));
+    canvas.drawBitmap(mipmap, mipmapRect, destRect, paint);
+  }
 
 }
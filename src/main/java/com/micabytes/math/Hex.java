@@ -0,0 +1,261 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.math;
+
+/**
+ * Hex grid math. Hexes are addressed by axial coordinates (q, r), packed into a long, so that they
+ * can be stored in arrays and used as keys without allocating; the third cube coordinate is
+ * s = -q - r. Offset coordinates (col, row), as used to store maps in rectangular arrays, are
+ * packed the same way.
+ * <p/>
+ * Pixel coordinates are relative to the center of hex (0, 0). Hexes are described by the width
+ * and height of their bounding box, so that they can be squashed; for pointy hexes, rows are
+ * 3/4 of the height apart, for flat hexes, columns are 3/4 of the width apart.
+ */
+@SuppressWarnings({"unused", "MagicNumber", "NumericCastThatLosesPrecision"})
+public final class Hex {
+  public static final int POINTY = 0;
+  public static final int FLAT = 1;
+  /**
+   * Offset layouts: pointy hexes with odd or even rows shifted right by half a hex, flat hexes with
+   * odd or even columns shifted down by half a hex
+   */
+  public static final int ODD_R = 0;
+  public static final int EVEN_R = 1;
+  public static final int ODD_Q = 2;
+  public static final int EVEN_Q = 3;
+  public static final int DIRECTIONS = 6;
+  // The axial offsets of the six neighbors, counter-clockwise, starting east (pointy) / south-east (flat)
+  private static final int[] DIRECTION_Q = {1, 1, 0, -1, -1, 0};
+  private static final int[] DIRECTION_R = {0, -1, -1, 0, 1, 1};
+  private static final long MASK = 0xFFFFFFFFL;
+
+  public static long pack(int q, int r) {
+    return ((long) q << 32) | (r & MASK);
+  }
+
+  public static int q(long hex) {
+    return (int) (hex >> 32);
+  }
+
+  public static int r(long hex) {
+    return (int) hex;
+  }
+
+  public static int s(long hex) {
+    return -q(hex) - r(hex);
+  }
+
+  /**
+   * The axial coordinates of a hex given in offset coordinates
+   */
+  public static long fromOffset(int col, int row, int layout) {
+    switch (layout) {
+      case ODD_R:
+        return pack(col - ((row - (row & 1)) >> 1), row);
+      case EVEN_R:
+        return pack(col - ((row + (row & 1)) >> 1), row);
+      case ODD_Q:
+        return pack(col, row - ((col - (col & 1)) >> 1));
+      case EVEN_Q:
+        return pack(col, row - ((col + (col & 1)) >> 1));
+      default:
+        throw new IllegalArgumentException("Unknown offset layout " + layout);
+    }
+  }
+
+  /**
+   * The offset coordinates (packed as col, row) of a hex
+   */
+  public static long toOffset(long hex, int layout) {
+    int q = q(hex);
+    int r = r(hex);
+    switch (layout) {
+      case ODD_R:
+        return pack(q + ((r - (r & 1)) >> 1), r);
+      case EVEN_R:
+        return pack(q + ((r + (r & 1)) >> 1), r);
+      case ODD_Q:
+        return pack(q, r + ((q - (q & 1)) >> 1));
+      case EVEN_Q:
+        return pack(q, r + ((q + (q & 1)) >> 1));
+      default:
+        throw new IllegalArgumentException("Unknown offset layout " + layout);
+    }
+  }
+
+  /**
+   * The x coordinate of the center of a hex, in pixels
+   */
+  public static float toPixelX(long hex, int orientation, float width) {
+    if (orientation == POINTY) return width * (q(hex) + (r(hex) * 0.5f));
+    return width * 0.75f * q(hex);
+  }
+
+  /**
+   * The y coordinate of the center of a hex, in pixels
+   */
+  public static float toPixelY(long hex, int orientation, float height) {
+    if (orientation == POINTY) return height * 0.75f * r(hex);
+    return height * (r(hex) + (q(hex) * 0.5f));
+  }
+
+  /**
+   * The hex containing a point, in pixels
+   */
+  public static long fromPixel(float x, float y, int orientation, float width, float height) {
+    double q;
+    double r;
+    if (orientation == POINTY) {
+      r = y / (height * 0.75);
+      q = (x / width) - (r * 0.5);
+    } else {
+      q = x / (width * 0.75);
+      r = (y / height) - (q * 0.5);
+    }
+    return round(q, r);
+  }
+
+  /**
+   * The hex containing a point in fractional axial coordinates (cube rounding)
+   */
+  public static long round(double q, double r) {
+    double s = -q - r;
+    long rq = Math.round(q);
+    long rr = Math.round(r);
+    long rs = Math.round(s);
+    double dq = Math.abs(rq - q);
+    double dr = Math.abs(rr - r);
+    double ds = Math.abs(rs - s);
+    if ((dq > dr) && (dq > ds)) {
+      rq = -rr - rs;
+    } else if (dr > ds) {
+      rr = -rq - rs;
+    }
+    return pack((int) rq, (int) rr);
+  }
+
+  public static int distance(long a, long b) {
+    int dq = q(a) - q(b);
+    int dr = r(a) - r(b);
+    return (Math.abs(dq) + Math.abs(dr) + Math.abs(dq + dr)) >> 1;
+  }
+
+  public static long add(long a, long b) {
+    return pack(q(a) + q(b), r(a) + r(b));
+  }
+
+  /**
+   * The neighbor of a hex in a direction (0 - 5)
+   */
+  public static long neighbor(long hex, int direction) {
+    return pack(q(hex) + DIRECTION_Q[direction], r(hex) + DIRECTION_R[direction]);
+  }
+
+  /**
+   * Get the six neighbors of a hex
+   *
+   * @return The number of neighbors (6)
+   */
+  public static int neighbors(long hex, long[] out) {
+    int q = q(hex);
+    int r = r(hex);
+    for (int d = 0; d < DIRECTIONS; d++) {
+      out[d] = pack(q + DIRECTION_Q[d], r + DIRECTION_R[d]);
+    }
+    return DIRECTIONS;
+  }
+
+  /**
+   * The number of hexes at a distance from a hex
+   */
+  public static int ringSize(int radius) {
+    return (radius == 0) ? 1 : (DIRECTIONS * radius);
+  }
+
+  /**
+   * The number of hexes within a distance of a hex
+   */
+  public static int spiralSize(int radius) {
+    return 1 + (3 * radius * (radius + 1));
+  }
+
+  /**
+   * Get the hexes at a distance from a hex, going round counter-clockwise
+   *
+   * @param out Holds at least {@link #ringSize(int)} hexes
+   * @return The number of hexes
+   */
+  public static int ring(long center, int radius, long[] out) {
+    return ring(center, radius, out, 0);
+  }
+
+  private static int ring(long center, int radius, long[] out, int offset) {
+    if (radius == 0) {
+      out[offset] = center;
+      return 1;
+    }
+    // Start radius steps in direction 4, then walk radius steps in each direction
+    int q = q(center) + (DIRECTION_Q[4] * radius);
+    int r = r(center) + (DIRECTION_R[4] * radius);
+    int n = offset;
+    for (int d = 0; d < DIRECTIONS; d++) {
+      for (int step = 0; step < radius; step++) {
+        out[n++] = pack(q, r);
+        q += DIRECTION_Q[d];
+        r += DIRECTION_R[d];
+      }
+    }
+    return n - offset;
+  }
+
+  /**
+   * Get the hexes within a distance of a hex, ring by ring from the center outwards
+   *
+   * @param out Holds at least {@link #spiralSize(int)} hexes
+   * @return The number of hexes
+   */
+  public static int spiral(long center, int radius, long[] out) {
+    int n = 0;
+    for (int k = 0; k <= radius; k++) {
+      n += ring(center, k, out, n);
+    }
+    return n;
+  }
+
+  /**
+   * Get the hexes on the line from a to b (inclusive)
+   *
+   * @param out Holds at least distance(a, b) + 1 hexes
+   * @return The number of hexes
+   */
+  public static int line(long a, long b, long[] out) {
+    int n = distance(a, b);
+    // Nudge the end points, so that the line does not run exactly along hex edges
+    double aq = q(a) + 1.0e-6;
+    double ar = r(a) + 1.0e-6;
+    double bq = q(b) + 1.0e-6;
+    double br = r(b) + 1.0e-6;
+    double step = (n == 0) ? 0.0 : (1.0 / n);
+    for (int i = 0; i <= n; i++) {
+      double t = step * i;
+      out[i] = round(aq + ((bq - aq) * t), ar + ((br - ar) * t));
+    }
+    return n + 1;
+  }
+
+  private Hex() {
+    throw new AssertionError("Utility classes should never be instantiated");
+  }
+
+}
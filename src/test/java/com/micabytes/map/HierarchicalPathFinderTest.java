@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.map;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that HierarchicalPathFinder finds a path whenever PathFinder does (and none when it does
+ * not), on random maps with 30% walls, for all three topologies, with and without moves that can
+ * only be made one way. Starts and goals may be walls; a path can leave a wall, but not enter it,
+ * so paths from a wall on a cluster border need a one-way crossing. The paths found must be valid
+ * paths between the two tiles.
+ */
+@SuppressWarnings("MagicNumber")
+public class HierarchicalPathFinderTest {
+  private static final int MAP_SIZE = 32;
+  private static final int CLUSTER_SIZE = 16;
+  private static final int MAPS = 100;
+  private static final int QUERIES = 40;
+  private static final int WALL_PERCENT = 30;
+  private static final int ONE_WAY_MAPS = 30;
+  // With one way moves, a move is blocked if twice the index of its tile plus that of the next tile
+  // is a multiple of this (so it can only be made one way)
+  private static final int ONE_WAY_MODULUS = 11;
+
+  @Test
+  public void squareFindsEveryPath() {
+    checkRandomMaps(PathFinder.SQUARE);
+  }
+
+  @Test
+  public void squareDiagonalFindsEveryPath() {
+    checkRandomMaps(PathFinder.SQUARE_DIAGONAL);
+  }
+
+  @Test
+  public void hexFindsEveryPath() {
+    checkRandomMaps(PathFinder.HEX);
+  }
+
+  @Test
+  public void oneWayMovesFindEveryPath() {
+    for (int topology = PathFinder.SQUARE; topology <= PathFinder.HEX; topology++) {
+      for (int seed = 0; seed < ONE_WAY_MAPS; seed++) {
+        checkMap(topology, seed, true);
+      }
+    }
+  }
+
+  /**
+   * Maps where a border tile crosses to two tiles of the neighboring cluster that are not connected
+   * along the border, and only one of the crossings used to get a transition
+   */
+  @Test
+  public void crossingsToUnconnectedTilesGetTransitions() {
+    checkMap(PathFinder.SQUARE_DIAGONAL, 1240L, false);
+    checkMap(PathFinder.HEX, 88L, false);
+  }
+
+  @Test
+  public void startOnWallCrossesOneWay() {
+    for (int topology = PathFinder.SQUARE; topology <= PathFinder.HEX; topology++) {
+      checkWallStart(topology);
+    }
+  }
+
+  /**
+   * A start on a wall on the right border of the first cluster, whose only way out is to cross
+   * into the second cluster, which cannot be done the other way
+   */
+  private static void checkWallStart(int topology) {
+    final int[] costs = new int[MAP_SIZE * MAP_SIZE];
+    Arrays.fill(costs, 1);
+    PathFinder finder = new PathFinder(MAP_SIZE, MAP_SIZE, topology, new PathFinder.Cost() {
+      @Override
+      public int cost(int fromX, int fromY, int toX, int toY) {
+        return costs[(toY * MAP_SIZE) + toX];
+      }
+    }, 1);
+    int start = finder.getIndex(CLUSTER_SIZE - 1, 5);
+    costs[start] = -1;
+    int[] neighbors = new int[8];
+    int n = finder.getNeighbors(start, neighbors);
+    for (int i = 0; i < n; i++) {
+      if (finder.getX(neighbors[i]) < CLUSTER_SIZE) costs[neighbors[i]] = -1;
+    }
+    HierarchicalPathFinder hierarchical = new HierarchicalPathFinder(finder, CLUSTER_SIZE);
+    String query = "topology " + topology;
+    assertNotNull(query, finder.findPath(CLUSTER_SIZE - 1, 5, CLUSTER_SIZE + 4, 5));
+    int[] path = hierarchical.findPath(CLUSTER_SIZE - 1, 5, CLUSTER_SIZE + 4, 5);
+    assertNotNull(query, path);
+    assertEquals(query, start, path[0]);
+    assertEquals(query, finder.getIndex(CLUSTER_SIZE + 4, 5), path[path.length - 1]);
+    assertTrue(query, finder.getPathCost(path) >= 0);
+  }
+
+  private static void checkRandomMaps(int topology) {
+    for (int seed = 0; seed < MAPS; seed++) {
+      checkMap(topology, seed, false);
+    }
+  }
+
+  private static void checkMap(int topology, long seed, final boolean oneWay) {
+    Random random = new Random(seed);
+    final int[] costs = new int[MAP_SIZE * MAP_SIZE];
+    for (int i = 0; i < costs.length; i++) {
+      costs[i] = (random.nextInt(100) < WALL_PERCENT) ? -1 : 1;
+    }
+    PathFinder finder = new PathFinder(MAP_SIZE, MAP_SIZE, topology, new PathFinder.Cost() {
+      @Override
+      public int cost(int fromX, int fromY, int toX, int toY) {
+        int to = (toY * MAP_SIZE) + toX;
+        if (oneWay && ((((((fromY * MAP_SIZE) + fromX) << 1) + to) % ONE_WAY_MODULUS) == 0)) return -1;
+        return costs[to];
+      }
+    }, 1);
+    HierarchicalPathFinder hierarchical = new HierarchicalPathFinder(finder, CLUSTER_SIZE);
+    for (int q = 0; q < QUERIES; q++) {
+      int start = random.nextInt(costs.length);
+      int goal = random.nextInt(costs.length);
+      int sx = start % MAP_SIZE;
+      int sy = start / MAP_SIZE;
+      int gx = goal % MAP_SIZE;
+      int gy = goal / MAP_SIZE;
+      String query = "topology " + topology + ", seed " + seed + (oneWay ? ", one way" : "") + ", (" + sx + ", " + sy + ") to (" + gx + ", " + gy + ')';
+      int[] path = hierarchical.findPath(sx, sy, gx, gy);
+      if (finder.findPath(sx, sy, gx, gy) == null) {
+        assertNull(query, path);
+        continue;
+      }
+      assertNotNull(query, path);
+      assertEquals(query, start, path[0]);
+      assertEquals(query, goal, path[path.length - 1]);
+      assertTrue(query, finder.getPathCost(path) >= 0);
+      for (int i = 1; i < path.length; i++) {
+        assertTrue(query, isNeighbor(finder, path[i - 1], path[i]));
+      }
+    }
+  }
+
+  private static boolean isNeighbor(PathFinder finder, int a, int b) {
+    int[] neighbors = new int[8];
+    int n = finder.getNeighbors(a, neighbors);
+    for (int i = 0; i < n; i++) {
+      if (neighbors[i] == b) return true;
+    }
+    return false;
+  }
+
+}
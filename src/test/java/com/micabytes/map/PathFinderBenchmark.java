@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.micabytes.map;
+
+import com.micabytes.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the time taken by PathFinder and HierarchicalPathFinder queries on 256x256 and
+ * 1024x1024 maps, for all three topologies, and prints the median and the 95th percentile. The maps are random (with a fixed
+ * seed), with 1 in 8 tiles blocked and the others costing 1 to 3; the queries are from corner to
+ * corner and between random tiles (some of which are blocked or cut off).
+ */
+@Category(Benchmark.class)
+@SuppressWarnings({"MagicNumber", "UseOfSystemOutOrSystemErr"})
+public class PathFinderBenchmark {
+  private static final int[] MAP_SIZES = {256, 1024};
+  private static final String[] TOPOLOGIES = {"square", "square diagonal", "hex"};
+  private static final int WARMUP_QUERIES = 20;
+  private static final int QUERIES = 50;
+  private static final long SEED = 3L;
+
+  @Test
+  public void findPath() {
+    for (int size : MAP_SIZES) {
+      for (int topology = PathFinder.SQUARE; topology <= PathFinder.HEX; topology++) {
+        PathFinder finder = randomMap(size, topology, SEED);
+        int last = size - 2;
+        for (int i = 0; i < WARMUP_QUERIES; i++) {
+          finder.findPath(1, 1, last, last);
+        }
+        long[] corner = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+          long t0 = System.nanoTime();
+          finder.findPath(1, 1, last, last);
+          corner[i] = System.nanoTime() - t0;
+        }
+        Random random = new Random(SEED);
+        long[] open = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+          int sx = 1 + random.nextInt(last);
+          int sy = 1 + random.nextInt(last);
+          int gx = 1 + random.nextInt(last);
+          int gy = 1 + random.nextInt(last);
+          long t0 = System.nanoTime();
+          finder.findPath(sx, sy, gx, gy);
+          open[i] = System.nanoTime() - t0;
+        }
+        System.out.println("A* " + size + 'x' + size + ' ' + TOPOLOGIES[topology]
+            + ": corner to corner " + report(corner) + ", random pairs " + report(open));
+      }
+    }
+  }
+
+  @Test
+  public void hierarchicalFindPath() {
+    for (int size : MAP_SIZES) {
+      for (int topology = PathFinder.SQUARE; topology <= PathFinder.HEX; topology++) {
+        PathFinder finder = randomMap(size, topology, SEED);
+        long t0 = System.nanoTime();
+        HierarchicalPathFinder hierarchical = new HierarchicalPathFinder(finder, HierarchicalPathFinder.DEFAULT_CLUSTER_SIZE);
+        long build = System.nanoTime() - t0;
+        int last = size - 2;
+        for (int i = 0; i < WARMUP_QUERIES; i++) {
+          hierarchical.findPath(1, 1, last, last);
+        }
+        long[] corner = new long[QUERIES];
+        long[] waypoints = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+          t0 = System.nanoTime();
+          hierarchical.findPath(1, 1, last, last);
+          corner[i] = System.nanoTime() - t0;
+          t0 = System.nanoTime();
+          hierarchical.findWaypoints(1, 1, last, last);
+          waypoints[i] = System.nanoTime() - t0;
+        }
+        System.out.println("HPA* " + size + 'x' + size + ' ' + TOPOLOGIES[topology] + ": build "
+            + (build / 1000000L) + " ms, " + hierarchical.getEntranceCount() + " entrances, corner to corner "
+            + report(corner) + ", waypoints only " + report(waypoints));
+      }
+    }
+  }
+
+  /**
+   * A map of the given size with 1 in 8 tiles blocked, and the corner tiles used by the queries open
+   */
+  static PathFinder randomMap(final int size, int topology, long seed) {
+    Random random = new Random(seed);
+    final int[] costs = new int[size * size];
+    for (int i = 0; i < costs.length; i++) {
+      costs[i] = (random.nextInt(8) == 0) ? -1 : (1 + random.nextInt(3));
+    }
+    costs[size + 1] = 1;
+    costs[((size - 2) * size) + size - 2] = 1;
+    return new PathFinder(size, size, topology, new PathFinder.Cost() {
+      @Override
+      public int cost(int fromX, int fromY, int toX, int toY) {
+        return costs[(toY * size) + toX];
+      }
+    }, 1);
+  }
+
+  /**
+   * The median and the 95th percentile of a set of durations, in ms
+   */
+  static String report(long[] nanos) {
+    long[] sorted = Arrays.copyOf(nanos, nanos.length);
+    Arrays.sort(sorted);
+    long p50 = sorted[sorted.length / 2];
+    long p95 = sorted[Math.min(sorted.length - 1, (sorted.length * 95) / 100)];
+    return "p50 " + (p50 / 1000L) / 1000.0 + " ms, p95 " + (p95 / 1000L) / 1000.0 + " ms";
+  }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 MicaByte Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * MapTiler converts a large image into a pre-tiled container, which BitmapSurfaceRenderer reads
+ * with setTileContainer(File). The container holds an image pyramid (each level half the size of
+ * the previous one), cut into square tiles that are compressed individually; see TileContainer for
+ * the layout of the file.
+ * <p/>
+ * This is a desktop (JVM) tool, not part of the library:
+ * <pre>
+ * javac MapTiler.java
+ * java MapTiler [-levels n] [-tile size] [-jpeg quality] source.png map.mtp
+ * </pre>
+ * By default the pyramid is built until the image fits in a single tile, the tile size is 256 and
+ * the tiles are compressed as PNG.
+ */
+public final class MapTiler {
+  private static final int MAGIC = 0x4d545031; // "MTP1"
+  private static final int DEFAULT_TILE_SIZE = 256;
+  private static final int INDEX_ENTRY_SIZE = 12;
+  private static final String PNG = "png";
+  private static final String JPEG = "jpeg";
+
+  private MapTiler() {
+    // NOOP
+  }
+
+  public static void main(String[] args) throws IOException {
+    int levels = 0;
+    int tileSize = DEFAULT_TILE_SIZE;
+    float quality = -1.0f;
+    int i = 0;
+    while ((i < args.length) && args[i].startsWith("-")) {
+      if ((i + 1) >= args.length) usage();
+      if ("-levels".equals(args[i])) levels = Integer.parseInt(args[i + 1]);
+      else if ("-tile".equals(args[i])) tileSize = Integer.parseInt(args[i + 1]);
+      else if ("-jpeg".equals(args[i])) quality = Integer.parseInt(args[i + 1]) / 100.0f;
+      else usage();
+      i += 2;
+    }
+    if ((args.length - i) != 2) usage();
+    BufferedImage source = ImageIO.read(new File(args[i]));
+    if (source == null) throw new IOException("Unable to read image " + args[i]);
+    if (levels <= 0) {
+      levels = 1;
+      while (((source.getWidth() >> (levels - 1)) > tileSize) || ((source.getHeight() >> (levels - 1)) > tileSize)) {
+        levels++;
+      }
+    }
+    write(source, levels, tileSize, quality, new File(args[i + 1]));
+  }
+
+  private static void usage() {
+    System.err.println("Usage: java MapTiler [-levels n] [-tile size] [-jpeg quality] source map");
+    System.exit(1);
+  }
+
+  /**
+   * Writes the container. The header and index are written first with empty entries, and the
+   * index is filled in once the offsets of the tiles are known.
+   */
+  private static void write(BufferedImage source, int levels, int tileSize, float quality, File file) throws IOException {
+    int w = source.getWidth();
+    int h = source.getHeight();
+    int[] columns = new int[levels];
+    int[] rows = new int[levels];
+    int tiles = 0;
+    for (int level = 0; level < levels; level++) {
+      columns[level] = (getLevelSize(w, level) + tileSize - 1) / tileSize;
+      rows[level] = (getLevelSize(h, level) + tileSize - 1) / tileSize;
+      tiles += columns[level] * rows[level];
+    }
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.setLength(0L);
+      out.writeInt(MAGIC);
+      out.writeInt(w);
+      out.writeInt(h);
+      out.writeInt(tileSize);
+      out.writeInt(levels);
+      for (int level = 0; level < levels; level++) {
+        out.writeInt(columns[level]);
+        out.writeInt(rows[level]);
+      }
+      long indexPos = out.getFilePointer();
+      long pos = indexPos + ((long) tiles * INDEX_ENTRY_SIZE);
+      ByteArrayOutputStream index = new ByteArrayOutputStream(tiles * INDEX_ENTRY_SIZE);
+      DataOutputStream indexOut = new DataOutputStream(index);
+      out.seek(pos);
+      BufferedImage image = toRgb(source, (quality >= 0.0f) || !source.getColorModel().hasAlpha());
+      for (int level = 0; level < levels; level++) {
+        if (level > 0) image = halve(image);
+        for (int row = 0; row < rows[level]; row++) {
+          for (int col = 0; col < columns[level]; col++) {
+            int x = col * tileSize;
+            int y = row * tileSize;
+            BufferedImage tile = image.getSubimage(x, y, Math.min(tileSize, image.getWidth() - x), Math.min(tileSize, image.getHeight() - y));
+            byte[] data = compress(tile, quality);
+            out.write(data);
+            indexOut.writeLong(pos);
+            indexOut.writeInt(data.length);
+            pos += data.length;
+          }
+        }
+        System.out.println("Level " + level + ": " + image.getWidth() + 'x' + image.getHeight() + ", "
+            + (columns[level] * rows[level]) + " tiles");
+      }
+      indexOut.flush();
+      out.seek(indexPos);
+      out.write(index.toByteArray());
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * The size of a dimension of the image at a pyramid level (rounded up)
+   */
+  private static int getLevelSize(int size, int level) {
+    return Math.max(1, ((size + (1 << level)) - 1) >> level);
+  }
+
+  private static BufferedImage toRgb(BufferedImage source, boolean opaque) {
+    int type = opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+    if (source.getType() == type) return source;
+    BufferedImage image = new BufferedImage(source.getWidth(), source.getHeight(), type);
+    Graphics2D g = image.createGraphics();
+    g.drawImage(source, 0, 0, null);
+    g.dispose();
+    return image;
+  }
+
+  /**
+   * Scales the image to half its size (rounded up) with bilinear filtering
+   */
+  private static BufferedImage halve(BufferedImage image) {
+    int w = Math.max(1, (image.getWidth() + 1) >> 1);
+    int h = Math.max(1, (image.getHeight() + 1) >> 1);
+    BufferedImage half = new BufferedImage(w, h, image.getType());
+    Graphics2D g = half.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+    g.drawImage(image, 0, 0, w, h, null);
+    g.dispose();
+    return half;
+  }
+
+  private static byte[] compress(BufferedImage tile, float quality) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    if (quality < 0.0f) {
+      ImageIO.write(tile, PNG, bytes);
+      return bytes.toByteArray();
+    }
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(JPEG);
+    if (!writers.hasNext()) throw new IOException("No JPEG writer available");
+    ImageWriter writer = writers.next();
+    try {
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(Math.min(1.0f, quality));
+      MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(bytes);
+      writer.setOutput(stream);
+      writer.write(null, new IIOImage(tile, null, null), param);
+      stream.close();
+    } finally {
+      writer.dispose();
+    }
+    return bytes.toByteArray();
+  }
+
+}